@@ -0,0 +1,137 @@
+package com.mario.musicplayer;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Two-level art cache: decoded bitmaps in a memory LruCache, backed by the downscaled
+// thumbnails ArtStore keeps on disk. Decoding happens off the main thread, and a view that
+// gets rebound before its image arrives cancels the old request.
+public class ArtLoader {
+
+    private static ArtLoader instance;
+
+    private final ArtStore artStore;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final ExecutorService decoder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final AtomicInteger memoryHits = new AtomicInteger();
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public static synchronized ArtLoader getInstance(Context context) {
+        if (instance == null) instance = new ArtLoader(context.getApplicationContext());
+        return instance;
+    }
+
+    private ArtLoader(Context context) {
+        artStore = ArtStore.getInstance(context);
+        // An eighth of the heap, in KB
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        memoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+        decoder = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "ArtLoader");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static class Request {
+        final String cacheKey;
+        Future<?> future;
+
+        Request(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    // Must be called on the main thread
+    public void load(String artKey, int size, ImageView view, int placeholderRes) {
+        cancel(view);
+        if (artKey == null) {
+            misses.incrementAndGet();
+            view.setImageResource(placeholderRes);
+            return;
+        }
+
+        String cacheKey = artKey + "_" + size;
+        Bitmap cached = memoryCache.get(cacheKey);
+        if (cached != null) {
+            memoryHits.incrementAndGet();
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageResource(placeholderRes);
+        Request request = new Request(cacheKey);
+        view.setTag(R.id.art_request, request);
+        request.future = decoder.submit(() -> {
+            Bitmap bitmap = artStore.load(artKey, size);
+            if (bitmap == null) {
+                misses.incrementAndGet();
+                return;
+            }
+            diskHits.incrementAndGet();
+            memoryCache.put(cacheKey, bitmap);
+            mainHandler.post(() -> {
+                if (view.getTag(R.id.art_request) != request) return;
+                view.setTag(R.id.art_request, null);
+                view.setImageBitmap(bitmap);
+            });
+        });
+    }
+
+    public void cancel(ImageView view) {
+        Object tag = view.getTag(R.id.art_request);
+        if (tag instanceof Request) {
+            Future<?> future = ((Request) tag).future;
+            if (future != null) future.cancel(false);
+            view.setTag(R.id.art_request, null);
+        }
+    }
+
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            memoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+        }
+    }
+
+    public int getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public String getStats() {
+        return "memory hits=" + memoryHits.get() + " disk hits=" + diskHits.get() +
+                " misses=" + misses.get() + " cache=" + memoryCache.size() + "/" +
+                memoryCache.maxSize() + "KB";
+    }
+}
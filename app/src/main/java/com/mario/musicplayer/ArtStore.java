@@ -0,0 +1,171 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Content-addressed album art on disk. Each distinct embedded picture is stored once, keyed
+// by its SHA-1, as pre-downscaled JPEGs for the list and the player; the songs table only
+// keeps the key, so tracks from the same album share one entry.
+public class ArtStore {
+
+    public static final int SIZE_LIST = 96;
+    public static final int SIZE_PLAYER = 512;
+
+    // Stands in for the key of a picture that hasn't been read out of its file yet, followed by
+    // the file's path. Songs the MediaStore indexer listed get one, so a scan never opens them.
+    private static final String PENDING = "file:";
+    private static final String NO_ART = "";
+
+    private static ArtStore instance;
+
+    private final Context context;
+    private final File dir;
+    // Pending keys already read, to their real key or NO_ART. The row update doesn't reach a
+    // cursor that is already open, so the same pending key keeps coming back until a requery.
+    private final ConcurrentHashMap<String, String> resolved = new ConcurrentHashMap<>();
+
+    public static synchronized ArtStore getInstance(Context context) {
+        if (instance == null) instance = new ArtStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private ArtStore(Context context) {
+        this.context = context;
+        dir = new File(context.getFilesDir(), "art");
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    // Returns the key for the picture, writing its thumbnails the first time it is seen.
+    // Safe to call from several threads at once.
+    public String put(byte[] picture) {
+        if (picture == null || picture.length == 0) return null;
+        String key = hash(picture);
+        if (getFile(key, SIZE_LIST).exists() && getFile(key, SIZE_PLAYER).exists()) return key;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, SIZE_PLAYER);
+        Bitmap decoded = BitmapFactory.decodeByteArray(picture, 0, picture.length, options);
+        if (decoded == null) return null;
+
+        boolean ok = write(scaled(decoded, SIZE_PLAYER), getFile(key, SIZE_PLAYER))
+                && write(scaled(decoded, SIZE_LIST), getFile(key, SIZE_LIST));
+        decoded.recycle();
+        return ok ? key : null;
+    }
+
+    public static String pendingKey(String path) {
+        return PENDING + path;
+    }
+
+    // Reads the picture a pending key stands for and records its real key on the song (null if
+    // the file has none), so each file is opened once, the first time its art is shown. Other
+    // keys come back as they are. Blocks on the file.
+    public String resolve(String key) {
+        if (key == null || !key.startsWith(PENDING)) return key;
+        String known = resolved.get(key);
+        if (known != null) return known.isEmpty() ? null : known;
+        String path = key.substring(PENDING.length());
+        String real = null;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            real = put(retriever.getEmbeddedPicture());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        // Two loaders racing on the same key both read the file; only the first one writes the row
+        if (resolved.putIfAbsent(key, real != null ? real : NO_ART) == null) {
+            DatabaseHelper.getInstance(context).replaceArtKey(path, key, real);
+        }
+        return real;
+    }
+
+    // The file changed and gets a pending key again, so it is read again
+    public void forget(String path) {
+        resolved.remove(pendingKey(path));
+    }
+
+    public File getFile(String key, int size) {
+        return new File(dir, key + "_" + size + ".jpg");
+    }
+
+    public Bitmap load(String key, int size) {
+        key = resolve(key);
+        if (key == null) return null;
+        File file = getFile(key, size);
+        return file.exists() ? BitmapFactory.decodeFile(file.getAbsolutePath()) : null;
+    }
+
+    // Deletes thumbnails no row refers to any more
+    public void prune(Set<String> liveKeys) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            int sep = name.indexOf('_');
+            if (sep > 0 && !liveKeys.contains(name.substring(0, sep))) f.delete();
+        }
+    }
+
+    private static int sampleSize(int width, int height, int target) {
+        int sample = 1;
+        while (width / (sample * 2) >= target && height / (sample * 2) >= target) sample *= 2;
+        return sample;
+    }
+
+    private static Bitmap scaled(Bitmap source, int size) {
+        int longest = Math.max(source.getWidth(), source.getHeight());
+        if (longest <= size) return source;
+        float scale = size / (float) longest;
+        return Bitmap.createScaledBitmap(source,
+                Math.max(1, Math.round(source.getWidth() * scale)),
+                Math.max(1, Math.round(source.getHeight() * scale)),
+                true);
+    }
+
+    // Writes to a temp file and renames, so a reader never sees half a thumbnail
+    private static boolean write(Bitmap bitmap, File target) {
+        File tmp = new File(target.getParentFile(),
+                target.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+            return false;
+        }
+        return tmp.renameTo(target);
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.mario.musicplayer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+// The file types the library picks up, by extension. Matching ignores case, so "Song.MP3"
+// counts too. Every place that decides whether a file is music asks here.
+public final class AudioFormats {
+
+    private static final Set<String> EXTENSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "mp3", "m4a", "aac", "flac", "ogg", "opus", "wav")));
+
+    private AudioFormats() {
+    }
+
+    public static boolean isAudioFile(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return false;
+        // Checked before lowercasing, so most non-audio files cost no allocation
+        if (name.length() - dot - 1 > 4) return false;
+        return EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public static Set<String> extensions() {
+        return EXTENSIONS;
+    }
+}
@@ -0,0 +1,110 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.*;
+import android.widget.*;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+// Rows of DatabaseHelper.getArtists() or getAlbums(), bound straight from the cursor like
+// SongAdapter. Every row is one artist or album with its counts already aggregated by SQLite.
+public class BrowseAdapter extends RecyclerView.Adapter<BrowseAdapter.ViewHolder> {
+
+    public interface OnGroupClickListener {
+        void onGroupClick(long id, String name);
+    }
+
+    private final LayoutInflater inflater;
+    private final ArtLoader artLoader;
+    private Cursor cursor;
+    private boolean albums;
+    private OnGroupClickListener clickListener;
+
+    private int idColumn, nameColumn, songCountColumn, detailColumn, artKeyColumn;
+
+    public BrowseAdapter(Context context) {
+        inflater = LayoutInflater.from(context);
+        artLoader = ArtLoader.getInstance(context);
+        setHasStableIds(true);
+    }
+
+    public void setOnGroupClickListener(OnGroupClickListener listener) {
+        clickListener = listener;
+    }
+
+    // Main thread only; closes the previous cursor
+    public void swap(Cursor next, boolean albums) {
+        Cursor old = cursor;
+        cursor = next;
+        this.albums = albums;
+        if (next != null) {
+            idColumn = next.getColumnIndexOrThrow(DatabaseHelper.COL_ID);
+            nameColumn = next.getColumnIndexOrThrow(albums ? DatabaseHelper.COL_TITLE : DatabaseHelper.COL_NAME);
+            songCountColumn = next.getColumnIndexOrThrow(DatabaseHelper.COL_SONG_COUNT);
+            detailColumn = next.getColumnIndexOrThrow(albums ? DatabaseHelper.COL_ARTIST : DatabaseHelper.COL_ALBUM_COUNT);
+            artKeyColumn = albums ? next.getColumnIndexOrThrow(DatabaseHelper.COL_ART_KEY) : -1;
+        }
+        notifyDataSetChanged();
+        if (old != null) old.close();
+    }
+
+    @Override
+    public int getItemCount() {
+        return cursor != null ? cursor.getCount() : 0;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return cursor != null && cursor.moveToPosition(position) ? cursor.getLong(idColumn) : RecyclerView.NO_ID;
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView image;
+        final TextView name;
+        final TextView detail;
+
+        ViewHolder(View view) {
+            super(view);
+            image = view.findViewById(R.id.songImage);
+            name = view.findViewById(R.id.songTitle);
+            detail = view.findViewById(R.id.songArtist);
+            view.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION || clickListener == null) return;
+                if (cursor == null || !cursor.moveToPosition(position)) return;
+                clickListener.onGroupClick(cursor.getLong(idColumn), cursor.getString(nameColumn));
+            });
+        }
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(inflater.inflate(R.layout.song_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        if (cursor == null || !cursor.moveToPosition(position)) return;
+        int songs = cursor.getInt(songCountColumn);
+        String songText = songs + (songs == 1 ? " song" : " songs");
+        holder.name.setText(cursor.getString(nameColumn));
+        if (albums) {
+            holder.detail.setText(cursor.getString(detailColumn) + " · " + songText);
+            artLoader.load(cursor.getString(artKeyColumn), ArtStore.SIZE_LIST,
+                    holder.image, android.R.drawable.ic_media_play);
+        } else {
+            int albumCount = cursor.getInt(detailColumn);
+            holder.detail.setText(albumCount + (albumCount == 1 ? " album · " : " albums · ") + songText);
+            artLoader.cancel(holder.image);
+            holder.image.setImageResource(android.R.drawable.ic_menu_myplaces);
+        }
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        artLoader.cancel(holder.image);
+    }
+}
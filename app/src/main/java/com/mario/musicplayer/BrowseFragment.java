@@ -0,0 +1,145 @@
+package com.mario.musicplayer;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.activity.OnBackPressedCallback;
+import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.google.android.material.tabs.TabLayout;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Artists and Albums tabs. Both lists come from GROUP BY queries, and tapping one shows its
+// songs; back returns to the list. All queries run on a single background thread.
+public class BrowseFragment extends Fragment {
+
+    private static final int TAB_ARTISTS = 0;
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private DatabaseHelper db;
+    private RecyclerView list;
+    private TextView header;
+    private BrowseAdapter groupAdapter;
+    private SongAdapter songAdapter;
+    private SongAdapter.Snapshot songs;
+    private int tab = TAB_ARTISTS;
+    // Bumped on every load, so a slow query never replaces a newer one's result
+    private int generation;
+
+    private final OnBackPressedCallback backToGroups = new OnBackPressedCallback(false) {
+        @Override
+        public void handleOnBackPressed() {
+            showGroups();
+        }
+    };
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_browse, container, false);
+
+        db = DatabaseHelper.getInstance(requireContext());
+        list = view.findViewById(R.id.browseList);
+        header = view.findViewById(R.id.browseHeader);
+        list.setLayoutManager(new LinearLayoutManager(requireContext()));
+
+        groupAdapter = new BrowseAdapter(requireContext());
+        groupAdapter.setOnGroupClickListener(this::showSongs);
+        songAdapter = new SongAdapter(requireContext());
+        songAdapter.setOnSongClickListener(position -> {
+            SongAdapter.Snapshot current = songs;
+            if (current == null) return;
+            ((MainActivity) requireActivity()).playFromList(current.ids, current.paths, position);
+        });
+
+        TabLayout tabs = view.findViewById(R.id.browseTabs);
+        tabs.addOnTabSelectedListener(new TabLayout.OnTabSelectedListener() {
+            @Override
+            public void onTabSelected(TabLayout.Tab selected) {
+                tab = selected.getPosition();
+                showGroups();
+            }
+
+            @Override
+            public void onTabUnselected(TabLayout.Tab unselected) {
+            }
+
+            @Override
+            public void onTabReselected(TabLayout.Tab reselected) {
+                showGroups();
+            }
+        });
+
+        requireActivity().getOnBackPressedDispatcher().addCallback(getViewLifecycleOwner(), backToGroups);
+        showGroups();
+        return view;
+    }
+
+    private void showGroups() {
+        backToGroups.setEnabled(false);
+        header.setVisibility(View.GONE);
+        list.setAdapter(groupAdapter);
+        boolean albums = tab != TAB_ARTISTS;
+        int gen = ++generation;
+        loader.execute(() -> {
+            Cursor cursor = albums ? db.getAlbums() : db.getArtists();
+            cursor.getCount(); // Runs the query here rather than on the first bind
+            deliver(gen, cursor, () -> groupAdapter.swap(cursor, albums));
+        });
+    }
+
+    private void showSongs(long id, String name) {
+        backToGroups.setEnabled(true);
+        header.setText(name);
+        header.setVisibility(View.VISIBLE);
+        list.setAdapter(songAdapter);
+        boolean albums = tab != TAB_ARTISTS;
+        int gen = ++generation;
+        loader.execute(() -> {
+            SongAdapter.Snapshot next = SongAdapter.Snapshot.from(
+                    albums ? db.getSongsByAlbum(id) : db.getSongsByArtist(id));
+            deliver(gen, next.cursor, () -> {
+                songs = next;
+                songAdapter.submit(next, null);
+            });
+        });
+    }
+
+    // Hands a loaded cursor to the UI, or closes it if the view is gone or a newer load started
+    private void deliver(int gen, Cursor cursor, Runnable apply) {
+        mainHandler.post(() -> {
+            if (getView() == null || gen != generation) {
+                cursor.close();
+                return;
+            }
+            apply.run();
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // Bump so loads still in flight close their cursors instead of delivering them
+        generation++;
+        groupAdapter.swap(null, false);
+        songAdapter.close();
+        songs = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        loader.shutdown();
+    }
+}
@@ -1,71 +1,826 @@
 package com.mario.musicplayer;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.content.ContentValues;
+import android.database.sqlite.SQLiteStatement;
 import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.Process;
+import androidx.annotation.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "music_meta.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
 
     public static final String TABLE_SONGS = "songs";
+    public static final String COL_ID = "_id"; // Stable across rescans, also what CursorAdapter expects
     public static final String COL_PATH = "path";
     public static final String COL_TITLE = "title";
-    public static final String COL_ARTIST = "artist";
+    public static final String COL_ARTIST_ID = "artist_id";
+    public static final String COL_ALBUM_ID = "album_id";
+    public static final String COL_GENRE = "genre";
+    public static final String COL_TRACK = "track_number";
+    public static final String COL_YEAR = "year";
     public static final String COL_DURATION = "duration";
-    public static final String COL_ART = "album_art"; // Stored as BLOB
+    public static final String COL_ART_KEY = "art_key"; // ArtStore key, the image lives on disk
+    public static final String COL_MODIFIED = "last_modified";
+    public static final String COL_SIZE = "size";
+
+    // Artist and album names are stored once, songs refer to them by id. Song queries join
+    // them back in under these column names.
+    public static final String TABLE_ARTISTS = "artists";
+    public static final String TABLE_ALBUMS = "albums";
+    public static final String COL_NAME = "name";
+    public static final String COL_ARTIST = "artist";
+    public static final String COL_ALBUM = "album";
+    public static final String COL_SONG_COUNT = "song_count";
+    public static final String COL_ALBUM_COUNT = "album_count";
+
+    private static final String SONG_COLUMN_DEFS =
+            COL_ID + " INTEGER PRIMARY KEY, " +
+            COL_PATH + " TEXT NOT NULL UNIQUE, " +
+            COL_TITLE + " TEXT, " +
+            COL_ARTIST_ID + " INTEGER REFERENCES " + TABLE_ARTISTS + "(" + COL_ID + "), " +
+            COL_ALBUM_ID + " INTEGER REFERENCES " + TABLE_ALBUMS + "(" + COL_ID + "), " +
+            COL_GENRE + " TEXT, " +
+            COL_TRACK + " INTEGER, " +
+            COL_YEAR + " INTEGER, " +
+            COL_DURATION + " INTEGER, " +
+            COL_ART_KEY + " TEXT, " +
+            COL_MODIFIED + " INTEGER NOT NULL DEFAULT 0, " +
+            COL_SIZE + " INTEGER NOT NULL DEFAULT 0";
+
+    // The songs table as it was from v4 to v6, with the names inline; only the v4 rebuild uses it
+    private static final String V6_SONG_COLUMN_DEFS =
+            COL_ID + " INTEGER PRIMARY KEY, " +
+            COL_PATH + " TEXT NOT NULL UNIQUE, " +
+            COL_TITLE + " TEXT, " +
+            COL_ARTIST + " TEXT, " +
+            COL_ALBUM + " TEXT, " +
+            COL_DURATION + " INTEGER, " +
+            COL_ART_KEY + " TEXT, " +
+            COL_MODIFIED + " INTEGER NOT NULL DEFAULT 0, " +
+            COL_SIZE + " INTEGER NOT NULL DEFAULT 0";
 
     private static final String CREATE_TABLE =
-            "CREATE TABLE " + TABLE_SONGS + " (" +
+            "CREATE TABLE " + TABLE_SONGS + " (" + SONG_COLUMN_DEFS + ");";
+
+    private static final String CREATE_TITLE_INDEX =
+            "CREATE INDEX songs_title_idx ON " + TABLE_SONGS + " (" + COL_TITLE + " COLLATE NOCASE);";
+
+    private static final String CREATE_ARTISTS_TABLE =
+            "CREATE TABLE " + TABLE_ARTISTS + " (" +
+                    COL_ID + " INTEGER PRIMARY KEY, " +
+                    COL_NAME + " TEXT NOT NULL UNIQUE);";
+
+    // Keyed by album artist, so two artists' "Greatest Hits" stay apart
+    private static final String CREATE_ALBUMS_TABLE =
+            "CREATE TABLE " + TABLE_ALBUMS + " (" +
+                    COL_ID + " INTEGER PRIMARY KEY, " +
+                    COL_TITLE + " TEXT NOT NULL, " +
+                    COL_ARTIST_ID + " INTEGER NOT NULL REFERENCES " + TABLE_ARTISTS + "(" + COL_ID + "), " +
+                    "UNIQUE (" + COL_TITLE + ", " + COL_ARTIST_ID + "));";
+
+    private static final String[] CREATE_BROWSE_INDEXES = {
+            "CREATE INDEX songs_artist_idx ON " + TABLE_SONGS + " (" + COL_ARTIST_ID + ");",
+            "CREATE INDEX songs_album_idx ON " + TABLE_SONGS + " (" + COL_ALBUM_ID + ", " + COL_TRACK + ");",
+            "CREATE INDEX artists_name_idx ON " + TABLE_ARTISTS + " (" + COL_NAME + " COLLATE NOCASE);",
+            "CREATE INDEX albums_title_idx ON " + TABLE_ALBUMS + " (" + COL_TITLE + " COLLATE NOCASE);",
+            "CREATE INDEX albums_artist_idx ON " + TABLE_ALBUMS + " (" + COL_ARTIST_ID + ");"
+    };
+
+    // songs with the artist and album names joined back in
+    private static final String SONGS_JOINED =
+            TABLE_SONGS + " s LEFT JOIN " + TABLE_ARTISTS + " ar ON ar." + COL_ID + " = s." + COL_ARTIST_ID +
+            " LEFT JOIN " + TABLE_ALBUMS + " al ON al." + COL_ID + " = s." + COL_ALBUM_ID;
+
+    private static final String LIST_SELECT =
+            "SELECT s." + COL_ID + ", s." + COL_PATH + ", s." + COL_TITLE + ", ar." + COL_NAME + " AS " +
+                    COL_ARTIST + ", s." + COL_DURATION + ", s." + COL_ART_KEY + ", s." + COL_MODIFIED +
+                    " FROM " + SONGS_JOINED;
+
+    private static final String SONG_SELECT =
+            "SELECT s." + COL_ID + ", s." + COL_PATH + ", s." + COL_TITLE + ", ar." + COL_NAME + " AS " +
+                    COL_ARTIST + ", al." + COL_TITLE + " AS " + COL_ALBUM + ", s." + COL_GENRE + ", s." +
+                    COL_TRACK + ", s." + COL_YEAR + ", s." + COL_DURATION + ", s." + COL_ART_KEY + ", s." +
+                    COL_MODIFIED + ", s." + COL_SIZE + " FROM " + SONGS_JOINED;
+
+    // Full-text index over title, artist and album. It keeps its own copy of the text, since
+    // the names live in other tables; the triggers below keep it in step with every insert
+    // and delete on songs, and with updates that touch the indexed columns, so stamp and art
+    // rewrites leave it alone. Search-as-you-type queries are mostly short prefixes, which
+    // the prefix indexes answer without walking every term that starts with them.
+    public static final String TABLE_SONGS_FTS = "songs_fts";
+
+    private static final String CREATE_FTS_TABLE =
+            "CREATE VIRTUAL TABLE " + TABLE_SONGS_FTS + " USING fts4(" +
+                    COL_TITLE + ", " + COL_ARTIST + ", " + COL_ALBUM + ", tokenize=unicode61, prefix=\"2,3\");";
+
+    private static final String FTS_INSERT_NEW =
+            "INSERT INTO " + TABLE_SONGS_FTS + " (docid, " + COL_TITLE + ", " + COL_ARTIST + ", " +
+                    COL_ALBUM + ") VALUES (new." + COL_ID + ", new." + COL_TITLE + ", " +
+                    "(SELECT " + COL_NAME + " FROM " + TABLE_ARTISTS + " WHERE " + COL_ID + " = new." + COL_ARTIST_ID + "), " +
+                    "(SELECT " + COL_TITLE + " FROM " + TABLE_ALBUMS + " WHERE " + COL_ID + " = new." + COL_ALBUM_ID + "));";
+
+    private static final String FTS_DELETE_OLD =
+            "DELETE FROM " + TABLE_SONGS_FTS + " WHERE docid = old." + COL_ID + ";";
+
+    private static final String[] FTS_TRIGGER_NAMES = {
+            "songs_fts_ai", "songs_fts_bu", "songs_fts_au", "songs_fts_bd"
+    };
+
+    private static final String FTS_COLUMNS = COL_TITLE + ", " + COL_ARTIST_ID + ", " + COL_ALBUM_ID;
+
+    // UPDATE_SONG sets every column, so UPDATE OF alone would still fire on a rescan that
+    // changed nothing searchable
+    private static final String FTS_CHANGED = " WHEN old." + COL_TITLE + " IS NOT new." + COL_TITLE +
+            " OR old." + COL_ARTIST_ID + " IS NOT new." + COL_ARTIST_ID +
+            " OR old." + COL_ALBUM_ID + " IS NOT new." + COL_ALBUM_ID;
+
+    private static final String[] CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER songs_fts_ai AFTER INSERT ON " + TABLE_SONGS +
+                    " BEGIN " + FTS_INSERT_NEW + " END;",
+            "CREATE TRIGGER songs_fts_bu BEFORE UPDATE OF " + FTS_COLUMNS + " ON " + TABLE_SONGS + FTS_CHANGED +
+                    " BEGIN " + FTS_DELETE_OLD + " END;",
+            "CREATE TRIGGER songs_fts_au AFTER UPDATE OF " + FTS_COLUMNS + " ON " + TABLE_SONGS + FTS_CHANGED +
+                    " BEGIN " + FTS_INSERT_NEW + " END;",
+            "CREATE TRIGGER songs_fts_bd BEFORE DELETE ON " + TABLE_SONGS +
+                    " BEGIN " + FTS_DELETE_OLD + " END;"
+    };
+
+    // Update-then-insert rather than INSERT OR REPLACE, which would delete the row and hand
+    // a changed file a new _id
+    private static final String UPDATE_SONG =
+            "UPDATE " + TABLE_SONGS + " SET " +
+                    COL_TITLE + "=?, " + COL_ARTIST_ID + "=?, " + COL_ALBUM_ID + "=?, " + COL_GENRE + "=?, " +
+                    COL_TRACK + "=?, " + COL_YEAR + "=?, " + COL_DURATION + "=?, " +
+                    COL_ART_KEY + "=?, " + COL_MODIFIED + "=?, " + COL_SIZE + "=?" +
+            " WHERE " + COL_PATH + "=?";
+
+    private static final String INSERT_SONG =
+            "INSERT INTO " + TABLE_SONGS + " (" +
+                    COL_TITLE + ", " + COL_ARTIST_ID + ", " + COL_ALBUM_ID + ", " + COL_GENRE + ", " +
+                    COL_TRACK + ", " + COL_YEAR + ", " + COL_DURATION + ", " +
+                    COL_ART_KEY + ", " + COL_MODIFIED + ", " + COL_SIZE + ", " + COL_PATH +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // Artists and albums no song refers to any more
+    private static final String DELETE_ORPHAN_ALBUMS =
+            "DELETE FROM " + TABLE_ALBUMS + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_SONGS +
+                    " WHERE " + COL_ALBUM_ID + " = " + TABLE_ALBUMS + "." + COL_ID + ")";
+
+    private static final String DELETE_ORPHAN_ARTISTS =
+            "DELETE FROM " + TABLE_ARTISTS + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_SONGS +
+                    " WHERE " + COL_ARTIST_ID + " = " + TABLE_ARTISTS + "." + COL_ID + ")" +
+                    " AND NOT EXISTS (SELECT 1 FROM " + TABLE_ALBUMS +
+                    " WHERE " + COL_ARTIST_ID + " = " + TABLE_ARTISTS + "." + COL_ID + ")";
+
+    // The play queue in order, and a single row with where playback was last checkpointed
+    public static final String TABLE_QUEUE = "queue";
+    public static final String TABLE_PLAYBACK_STATE = "playback_state";
+    public static final String COL_QUEUE_POSITION = "position";
+    public static final String COL_SONG_ID = "song_id";
+    public static final String COL_POSITION_MS = "position_ms";
+    public static final String COL_UPDATED_AT = "updated_at";
+
+    private static final String CREATE_QUEUE_TABLE =
+            "CREATE TABLE " + TABLE_QUEUE + " (" +
+                    COL_QUEUE_POSITION + " INTEGER PRIMARY KEY, " +
+                    COL_SONG_ID + " INTEGER NOT NULL);";
+
+    private static final String CREATE_PLAYBACK_STATE_TABLE =
+            "CREATE TABLE " + TABLE_PLAYBACK_STATE + " (" +
+                    COL_ID + " INTEGER PRIMARY KEY CHECK (" + COL_ID + " = 0), " +
+                    COL_SONG_ID + " INTEGER NOT NULL, " +
+                    COL_POSITION_MS + " INTEGER NOT NULL, " +
+                    COL_UPDATED_AT + " INTEGER NOT NULL);";
+
+    // Files already handed to the OS media scanner, with the stamps they had at the time
+    public static final String TABLE_MEDIA_SCANNED = "media_scanned";
+
+    private static final String CREATE_MEDIA_SCANNED_TABLE =
+            "CREATE TABLE " + TABLE_MEDIA_SCANNED + " (" +
                     COL_PATH + " TEXT PRIMARY KEY, " +
-                    COL_TITLE + " TEXT, " +
-                    COL_ARTIST + " TEXT, " +
-                    COL_DURATION + " INTEGER, " +
-                    COL_ART + " BLOB" +
-            ");";
+                    COL_MODIFIED + " INTEGER NOT NULL, " +
+                    COL_SIZE + " INTEGER NOT NULL);";
+
+    // Downloads, so queued and interrupted ones survive the process. One row per source URL.
+    public static final String TABLE_DOWNLOADS = "downloads";
+    public static final String COL_URL = "url";
+    public static final String COL_STATUS = "status";
+    public static final String COL_DOWNLOADED = "downloaded";
+    public static final String COL_TOTAL = "total";
+    public static final String COL_ATTEMPTS = "attempts";
+    public static final String COL_ERROR = "error";
+
+    private static final String CREATE_DOWNLOADS_TABLE =
+            "CREATE TABLE " + TABLE_DOWNLOADS + " (" +
+                    COL_ID + " INTEGER PRIMARY KEY, " +
+                    COL_URL + " TEXT NOT NULL UNIQUE, " +
+                    COL_STATUS + " INTEGER NOT NULL, " +
+                    COL_DOWNLOADED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COL_TOTAL + " INTEGER NOT NULL DEFAULT -1, " +
+                    COL_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, " +
+                    COL_PATH + " TEXT, " +
+                    COL_ERROR + " TEXT);";
+
+    private static DatabaseHelper instance;
+
+    private boolean vacuumPending;
+
+    // One helper (and so one connection pool) per process; the scanner writes from
+    // background threads while the UI reads.
+    public static synchronized DatabaseHelper getInstance(Context context) {
+        if (instance == null) instance = new DatabaseHelper(context.getApplicationContext());
+        return instance;
+    }
+
+    // Closes the helper and forgets it, so the next test gets a fresh app and database
+    @VisibleForTesting
+    static synchronized void resetInstance() {
+        if (instance != null) instance.close();
+        instance = null;
+    }
 
-    public DatabaseHelper(Context context) {
+    private DatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // Lets the list keep reading while the scanner commits batches
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
+        db.execSQL(CREATE_ARTISTS_TABLE);
+        db.execSQL(CREATE_ALBUMS_TABLE);
         db.execSQL(CREATE_TABLE);
+        db.execSQL(CREATE_TITLE_INDEX);
+        for (String index : CREATE_BROWSE_INDEXES) db.execSQL(index);
+        db.execSQL(CREATE_QUEUE_TABLE);
+        db.execSQL(CREATE_PLAYBACK_STATE_TABLE);
+        db.execSQL(CREATE_MEDIA_SCANNED_TABLE);
+        db.execSQL(CREATE_DOWNLOADS_TABLE);
+        createFtsIndex(db);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldV, int newV) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
-        onCreate(db);
+        if (oldV < 2) {
+            // Rows from v1 get zero stamps, so the next scan refreshes them once
+            db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + COL_MODIFIED + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + COL_SIZE + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldV < 3) {
+            // The pictures inline in v2 rows are left behind rather than moved into the ArtStore
+            // here, on whatever thread opened the database: v7 below clears every stamp, so
+            // the next scan extracts them again off the main thread anyway
+            db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + COL_ART_KEY + " TEXT");
+        }
+        if (oldV < 4) {
+            // Rebuild with an explicit _id (plain rowids may be renumbered by VACUUM) and
+            // without the legacy art column
+            db.execSQL("CREATE TABLE songs_v4 (" + V6_SONG_COLUMN_DEFS + ");");
+            db.execSQL("INSERT INTO songs_v4 (" + COL_ID + ", " + COL_PATH + ", " + COL_TITLE + ", " +
+                    COL_ARTIST + ", " + COL_DURATION + ", " + COL_ART_KEY + ", " + COL_MODIFIED + ", " +
+                    COL_SIZE + ") SELECT rowid, " + COL_PATH + ", " + COL_TITLE + ", " + COL_ARTIST + ", " +
+                    COL_DURATION + ", " + COL_ART_KEY + ", " + COL_MODIFIED + ", " + COL_SIZE +
+                    " FROM " + TABLE_SONGS);
+            db.execSQL("DROP TABLE " + TABLE_SONGS);
+            db.execSQL("ALTER TABLE songs_v4 RENAME TO " + TABLE_SONGS);
+            db.execSQL(CREATE_TITLE_INDEX);
+            vacuumPending = true;
+        }
+        if (oldV < 5) {
+            db.execSQL(CREATE_QUEUE_TABLE);
+            db.execSQL(CREATE_PLAYBACK_STATE_TABLE);
+        }
+        if (oldV < 6) {
+            // The v4 rebuild above already creates the album column
+            if (oldV >= 4) db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + COL_ALBUM + " TEXT");
+        }
+        if (oldV < 7) {
+            normalizeSongs(db);
+        }
+        if (oldV < 8) {
+            db.execSQL(CREATE_MEDIA_SCANNED_TABLE);
+        }
+        if (oldV < 9) {
+            db.execSQL(CREATE_DOWNLOADS_TABLE);
+        }
+        if (oldV < 10 && oldV >= 7) {
+            // Rebuilt with prefix indexes, and the update triggers limited to the indexed columns;
+            // before v7 normalizeSongs() already built it that way
+            db.execSQL("DROP TABLE " + TABLE_SONGS_FTS);
+            for (String trigger : FTS_TRIGGER_NAMES) db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+            createFtsIndex(db);
+            fillFtsIndex(db);
+        }
+    }
+
+    // v7: artist and album names move out into their own tables. Every row's stamp is
+    // cleared, so the next scan fills in genre, track number, year and album artist.
+    private void normalizeSongs(SQLiteDatabase db) {
+        String artistName = "COALESCE(s." + COL_ARTIST + ", 'Unknown Artist')";
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS_FTS);
+        db.execSQL(CREATE_ARTISTS_TABLE);
+        db.execSQL(CREATE_ALBUMS_TABLE);
+        db.execSQL("INSERT INTO " + TABLE_ARTISTS + " (" + COL_NAME + ") SELECT DISTINCT " +
+                artistName + " FROM " + TABLE_SONGS + " s");
+        db.execSQL("INSERT INTO " + TABLE_ALBUMS + " (" + COL_TITLE + ", " + COL_ARTIST_ID + ") " +
+                "SELECT DISTINCT s." + COL_ALBUM + ", ar." + COL_ID + " FROM " + TABLE_SONGS + " s JOIN " +
+                TABLE_ARTISTS + " ar ON ar." + COL_NAME + " = " + artistName +
+                " WHERE s." + COL_ALBUM + " IS NOT NULL");
+        db.execSQL("CREATE TABLE songs_v7 (" + SONG_COLUMN_DEFS + ");");
+        db.execSQL("INSERT INTO songs_v7 (" + COL_ID + ", " + COL_PATH + ", " + COL_TITLE + ", " +
+                COL_ARTIST_ID + ", " + COL_ALBUM_ID + ", " + COL_DURATION + ", " + COL_ART_KEY + ", " +
+                COL_MODIFIED + ", " + COL_SIZE + ") SELECT s." + COL_ID + ", s." + COL_PATH + ", s." +
+                COL_TITLE + ", ar." + COL_ID + ", al." + COL_ID + ", s." + COL_DURATION + ", s." +
+                COL_ART_KEY + ", 0, s." + COL_SIZE + " FROM " + TABLE_SONGS + " s JOIN " +
+                TABLE_ARTISTS + " ar ON ar." + COL_NAME + " = " + artistName + " LEFT JOIN " +
+                TABLE_ALBUMS + " al ON al." + COL_TITLE + " = s." + COL_ALBUM +
+                " AND al." + COL_ARTIST_ID + " = ar." + COL_ID);
+        db.execSQL("DROP TABLE " + TABLE_SONGS);
+        db.execSQL("ALTER TABLE songs_v7 RENAME TO " + TABLE_SONGS);
+        db.execSQL(CREATE_TITLE_INDEX);
+        for (String index : CREATE_BROWSE_INDEXES) db.execSQL(index);
+        createFtsIndex(db);
+        fillFtsIndex(db);
+        vacuumPending = true;
+    }
+
+    private static void createFtsIndex(SQLiteDatabase db) {
+        db.execSQL(CREATE_FTS_TABLE);
+        for (String trigger : CREATE_FTS_TRIGGERS) db.execSQL(trigger);
+    }
+
+    private static void fillFtsIndex(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + TABLE_SONGS_FTS + " (docid, " + COL_TITLE + ", " + COL_ARTIST + ", " +
+                COL_ALBUM + ") SELECT s." + COL_ID + ", s." + COL_TITLE + ", ar." + COL_NAME + ", al." +
+                COL_TITLE + " FROM " + SONGS_JOINED);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Can't run inside the upgrade transaction, and rewrites the whole file, so it runs
+        // once on its own thread after the open rather than on whichever thread opened it
+        if (vacuumPending) {
+            vacuumPending = false;
+            Thread vacuum = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    getWritableDatabase().execSQL("VACUUM");
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, "DatabaseHelper-vacuum");
+            vacuum.setDaemon(true);
+            vacuum.start();
+        }
+    }
+
+    // Folds the write-ahead log back into the main file and empties it, so a copy of the file
+    // alone has every committed change. False if a reader kept it from finishing.
+    public boolean checkpoint() {
+        try (Cursor result = getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) {
+            return result.moveToFirst() && result.getInt(0) == 0;
+        }
+    }
+
+    // path -> {last_modified, size} for every indexed file, in a single query
+    public Map<String, long[]> getFileStamps() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_SONGS, new String[]{COL_PATH, COL_MODIFIED, COL_SIZE},
+                null, null, null, null, null);
+        HashMap<String, long[]> stamps = new HashMap<>(Math.max(16, cursor.getCount() * 4 / 3 + 1));
+        while (cursor.moveToNext()) {
+            stamps.put(cursor.getString(0), new long[]{cursor.getLong(1), cursor.getLong(2)});
+        }
+        cursor.close();
+        return stamps;
     }
 
-    public boolean isSongCached(String path) {
+    // {last_modified, size} of one file, or null if it isn't indexed
+    public long[] getFileStamp(String path) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_SONGS, new String[]{COL_MODIFIED, COL_SIZE},
+                COL_PATH + "=?", new String[]{path}, null, null, null);
+        long[] stamp = cursor.moveToFirst() ? new long[]{cursor.getLong(0), cursor.getLong(1)} : null;
+        cursor.close();
+        return stamp;
+    }
+
+    public void deleteSongs(Collection<String> paths) {
+        if (paths.isEmpty()) return;
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement delete = db.compileStatement(
+                "DELETE FROM " + TABLE_SONGS + " WHERE " + COL_PATH + "=?");
+        db.beginTransaction();
+        try {
+            for (String path : paths) {
+                delete.bindString(1, path);
+                delete.executeUpdateDelete();
+            }
+            deleteOrphans(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+    }
+
+    public void insertSong(Song song) {
+        insertSongs(Collections.singletonList(song));
+    }
+
+    // Bulk ingest: one transaction and one compiled statement for the whole batch, instead of
+    // an auto-committed insert (and journal sync) per row.
+    public void insertSongs(List<Song> songs) {
+        if (songs.isEmpty()) return;
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement update = db.compileStatement(UPDATE_SONG);
+        SQLiteStatement insert = db.compileStatement(INSERT_SONG);
+        db.beginTransaction();
+        NameIds names = new NameIds(db);
+        try {
+            boolean updated = false;
+            for (Song song : songs) {
+                long artistId = names.artist(song.artist);
+                String albumArtist = song.albumArtist != null ? song.albumArtist : song.artist;
+                long albumId = song.album != null ? names.album(song.album, names.artist(albumArtist)) : -1;
+                bindSong(update, song, artistId, albumId);
+                if (update.executeUpdateDelete() == 0) {
+                    bindSong(insert, song, artistId, albumId);
+                    insert.executeInsert();
+                } else {
+                    updated = true;
+                }
+            }
+            // A re-tagged file may have been the last one pointing at its old artist or album
+            if (updated) deleteOrphans(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            insert.close();
+            names.close();
+        }
+    }
+
+    // UPDATE_SONG and INSERT_SONG take their arguments in the same order
+    private static void bindSong(SQLiteStatement statement, Song song, long artistId, long albumId) {
+        statement.clearBindings();
+        bindStringOrNull(statement, 1, song.title);
+        statement.bindLong(2, artistId);
+        if (albumId >= 0) statement.bindLong(3, albumId);
+        else statement.bindNull(3);
+        bindStringOrNull(statement, 4, song.genre);
+        statement.bindLong(5, song.trackNumber);
+        statement.bindLong(6, song.year);
+        statement.bindLong(7, song.duration);
+        bindStringOrNull(statement, 8, song.artKey);
+        statement.bindLong(9, song.lastModified);
+        statement.bindLong(10, song.size);
+        statement.bindString(11, song.path);
+    }
+
+    private static void deleteOrphans(SQLiteDatabase db) {
+        db.execSQL(DELETE_ORPHAN_ALBUMS);
+        db.execSQL(DELETE_ORPHAN_ARTISTS);
+    }
+
+    // Finds or creates artist and album rows inside a write transaction. Ids are cached for
+    // the batch, so an album's worth of tracks costs one lookup.
+    private static class NameIds {
+        private final SQLiteStatement insertArtist;
+        private final SQLiteStatement findArtist;
+        private final SQLiteStatement insertAlbum;
+        private final SQLiteStatement findAlbum;
+        private final HashMap<String, Long> artists = new HashMap<>();
+        private final HashMap<String, Long> albums = new HashMap<>();
+
+        NameIds(SQLiteDatabase db) {
+            insertArtist = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_ARTISTS +
+                    " (" + COL_NAME + ") VALUES (?)");
+            findArtist = db.compileStatement("SELECT " + COL_ID + " FROM " + TABLE_ARTISTS +
+                    " WHERE " + COL_NAME + "=?");
+            insertAlbum = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_ALBUMS +
+                    " (" + COL_TITLE + ", " + COL_ARTIST_ID + ") VALUES (?, ?)");
+            findAlbum = db.compileStatement("SELECT " + COL_ID + " FROM " + TABLE_ALBUMS +
+                    " WHERE " + COL_TITLE + "=? AND " + COL_ARTIST_ID + "=?");
+        }
+
+        long artist(String name) {
+            if (name == null) name = "Unknown Artist";
+            Long id = artists.get(name);
+            if (id == null) {
+                insertArtist.bindString(1, name);
+                insertArtist.executeInsert();
+                findArtist.bindString(1, name);
+                id = findArtist.simpleQueryForLong();
+                artists.put(name, id);
+            }
+            return id;
+        }
+
+        long album(String title, long artistId) {
+            String key = artistId + "/" + title;
+            Long id = albums.get(key);
+            if (id == null) {
+                insertAlbum.bindString(1, title);
+                insertAlbum.bindLong(2, artistId);
+                insertAlbum.executeInsert();
+                findAlbum.bindString(1, title);
+                findAlbum.bindLong(2, artistId);
+                id = findAlbum.simpleQueryForLong();
+                albums.put(key, id);
+            }
+            return id;
+        }
+
+        void close() {
+            insertArtist.close();
+            findArtist.close();
+            insertAlbum.close();
+            findAlbum.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value != null) statement.bindString(index, value);
+        else statement.bindNull(index);
+    }
+
+    public Set<String> getArtKeys() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(true, TABLE_SONGS, new String[]{COL_ART_KEY},
+                COL_ART_KEY + " IS NOT NULL", null, null, null, null, null);
+        HashSet<String> keys = new HashSet<>();
+        while (cursor.moveToNext()) keys.add(cursor.getString(0));
+        cursor.close();
+        return keys;
+    }
+
+    // Replaces the art key of a song, unless a rescan has set another one in the meantime
+    public void replaceArtKey(String path, String oldKey, String newKey) {
+        ContentValues values = new ContentValues();
+        values.put(COL_ART_KEY, newKey);
+        getWritableDatabase().update(TABLE_SONGS, values,
+                COL_PATH + "=? AND " + COL_ART_KEY + "=?", new String[]{path, oldKey});
+    }
+
+    // The whole library as one cursor, sorted by title. SQLiteCursor only fills a window of
+    // rows around the position being read, so the list pages through it as it scrolls.
+    public Cursor getSongList() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(LIST_SELECT + " ORDER BY s." + COL_TITLE + " COLLATE NOCASE", null);
+    }
+
+    // Songs matching every word of the query as a prefix, in any of title, artist or album,
+    // in list order. Null if the query has no searchable words.
+    public Cursor searchSongs(String query, CancellationSignal signal) {
+        String match = toMatchQuery(query);
+        if (match == null) return null;
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(LIST_SELECT + " WHERE s." + COL_ID + " IN (SELECT docid FROM " +
+                TABLE_SONGS_FTS + " WHERE " + TABLE_SONGS_FTS + " MATCH ?) ORDER BY s." +
+                COL_TITLE + " COLLATE NOCASE", new String[]{match}, signal);
+    }
+
+    // "Daft pu" -> "daft* pu*". Everything but letters and digits is dropped, so user input can
+    // never form MATCH operators or a malformed expression. A lone letter or digit (the first
+    // key typed) matches a large part of any library, which makes it the slowest search there
+    // is for no filtering worth having, so it counts as nothing to search for yet. A single
+    // ideograph is a whole word and is searched.
+    static String toMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (word.isEmpty()) continue;
+            if (match.length() > 0) match.append(' ');
+            match.append(word).append('*');
+        }
+        if (match.length() == 2 && !Character.isIdeographic(match.charAt(0))) return null;
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    // Indexed paths inside dir at any depth. A range on the path index rather than LIKE, which
+    // would also treat '_' and '%' in folder names as wildcards ('0' sorts right after '/').
+    public List<String> getPathsUnder(String dir) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_SONGS, new String[]{COL_PATH},
+                COL_PATH + " > ? AND " + COL_PATH + " < ?", new String[]{dir + "/", dir + "0"},
+                null, null, null);
+        ArrayList<String> paths = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) paths.add(cursor.getString(0));
+        cursor.close();
+        return paths;
+    }
+
+    public String getSongPath(long id) {
         SQLiteDatabase db = this.getReadableDatabase();
         Cursor cursor = db.query(TABLE_SONGS, new String[]{COL_PATH},
+                COL_ID + "=?", new String[]{String.valueOf(id)},
+                null, null, null);
+        String path = cursor.moveToFirst() ? cursor.getString(0) : null;
+        cursor.close();
+        return path;
+    }
+
+    // -1 if the path isn't indexed
+    public long getSongId(String path) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_SONGS, new String[]{COL_ID},
                 COL_PATH + "=?", new String[]{path},
                 null, null, null);
-        boolean exists = cursor.moveToFirst();
+        long id = cursor.moveToFirst() ? cursor.getLong(0) : -1;
         cursor.close();
-        return exists;
+        return id;
     }
 
-    public void insertSong(String path, String title, String artist, int duration, byte[] albumArt) {
+    public Cursor getSongById(long id) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(SONG_SELECT + " WHERE s." + COL_ID + "=?",
+                new String[]{String.valueOf(id)});
+    }
+
+    // Browse views. Counts come from GROUP BY over the indexed id columns, so the whole
+    // library is never pulled into memory to be grouped.
+    public Cursor getArtists() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery("SELECT ar." + COL_ID + ", ar." + COL_NAME + ", COUNT(*) AS " + COL_SONG_COUNT +
+                ", COUNT(DISTINCT s." + COL_ALBUM_ID + ") AS " + COL_ALBUM_COUNT +
+                " FROM " + TABLE_ARTISTS + " ar JOIN " + TABLE_SONGS + " s ON s." + COL_ARTIST_ID +
+                " = ar." + COL_ID + " GROUP BY ar." + COL_ID +
+                " ORDER BY ar." + COL_NAME + " COLLATE NOCASE", null);
+    }
+
+    public Cursor getAlbums() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery("SELECT al." + COL_ID + ", al." + COL_TITLE + ", ar." + COL_NAME + " AS " +
+                COL_ARTIST + ", COUNT(*) AS " + COL_SONG_COUNT + ", MAX(s." + COL_YEAR + ") AS " +
+                COL_YEAR + ", MAX(s." + COL_ART_KEY + ") AS " + COL_ART_KEY +
+                " FROM " + TABLE_ALBUMS + " al JOIN " + TABLE_ARTISTS + " ar ON ar." + COL_ID +
+                " = al." + COL_ARTIST_ID + " JOIN " + TABLE_SONGS + " s ON s." + COL_ALBUM_ID +
+                " = al." + COL_ID + " GROUP BY al." + COL_ID +
+                " ORDER BY al." + COL_TITLE + " COLLATE NOCASE", null);
+    }
+
+    // Same columns as getSongList(), so the song list adapter can show them
+    public Cursor getSongsByArtist(long artistId) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(LIST_SELECT + " WHERE s." + COL_ARTIST_ID + "=? ORDER BY al." + COL_TITLE +
+                " COLLATE NOCASE, s." + COL_TRACK + ", s." + COL_TITLE + " COLLATE NOCASE",
+                new String[]{String.valueOf(artistId)});
+    }
+
+    public Cursor getSongsByAlbum(long albumId) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        return db.rawQuery(LIST_SELECT + " WHERE s." + COL_ALBUM_ID + "=? ORDER BY s." + COL_TRACK +
+                ", s." + COL_TITLE + " COLLATE NOCASE", new String[]{String.valueOf(albumId)});
+    }
+
+    // path -> {last_modified, size} as last handed to the media scanner
+    public Map<String, long[]> getMediaScanStamps() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_MEDIA_SCANNED, new String[]{COL_PATH, COL_MODIFIED, COL_SIZE},
+                null, null, null, null, null);
+        HashMap<String, long[]> stamps = new HashMap<>(Math.max(16, cursor.getCount() * 4 / 3 + 1));
+        while (cursor.moveToNext()) {
+            stamps.put(cursor.getString(0), new long[]{cursor.getLong(1), cursor.getLong(2)});
+        }
+        cursor.close();
+        return stamps;
+    }
+
+    public void updateMediaScanStamps(Map<String, long[]> scanned, Collection<String> removed) {
+        if (scanned.isEmpty() && removed.isEmpty()) return;
+        SQLiteDatabase db = this.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_MEDIA_SCANNED +
+                " (" + COL_PATH + ", " + COL_MODIFIED + ", " + COL_SIZE + ") VALUES (?, ?, ?)");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_MEDIA_SCANNED +
+                " WHERE " + COL_PATH + "=?");
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, long[]> entry : scanned.entrySet()) {
+                insert.bindString(1, entry.getKey());
+                insert.bindLong(2, entry.getValue()[0]);
+                insert.bindLong(3, entry.getValue()[1]);
+                insert.executeInsert();
+            }
+            for (String path : removed) {
+                delete.bindString(1, path);
+                delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            delete.close();
+        }
+    }
+
+    // Every download in the order it was added
+    public List<DownloadJob> getDownloadJobs() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_DOWNLOADS, new String[]{COL_URL, COL_STATUS,
+                        COL_DOWNLOADED, COL_TOTAL, COL_ATTEMPTS, COL_PATH, COL_ERROR},
+                null, null, null, null, COL_ID);
+        ArrayList<DownloadJob> jobs = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            jobs.add(new DownloadJob(cursor.getString(0), cursor.getInt(1), cursor.getLong(2),
+                    cursor.getLong(3), cursor.getInt(4), cursor.getString(5), cursor.getString(6)));
+        }
+        cursor.close();
+        return jobs;
+    }
+
+    // Keyed by URL; updating in place keeps the job's position in the list
+    public void saveDownloadJob(DownloadJob job) {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
-        values.put(COL_PATH, path);
-        values.put(COL_TITLE, title);
-        values.put(COL_ARTIST, artist);
-        values.put(COL_DURATION, duration);
-        values.put(COL_ART, albumArt);
-        db.insertWithOnConflict(TABLE_SONGS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        values.put(COL_STATUS, job.status);
+        values.put(COL_DOWNLOADED, job.downloaded);
+        values.put(COL_TOTAL, job.total);
+        values.put(COL_ATTEMPTS, job.attempts);
+        values.put(COL_PATH, job.path);
+        values.put(COL_ERROR, job.error);
+        if (db.update(TABLE_DOWNLOADS, values, COL_URL + "=?", new String[]{job.url}) == 0) {
+            values.put(COL_URL, job.url);
+            db.insert(TABLE_DOWNLOADS, null, values);
+        }
     }
 
-    public Cursor getSong(String path) {
+    public void deleteDownloadJob(String url) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete(TABLE_DOWNLOADS, COL_URL + "=?", new String[]{url});
+    }
+
+    // Writes the queue (when queueIds is not null) and the playback checkpoint in one
+    // transaction, so a restore never sees one without the other
+    public void saveQueueState(long[] queueIds, long songId, int positionMs) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (queueIds != null) {
+                db.delete(TABLE_QUEUE, null, null);
+                SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_QUEUE +
+                        " (" + COL_QUEUE_POSITION + ", " + COL_SONG_ID + ") VALUES (?, ?)");
+                for (int i = 0; i < queueIds.length; i++) {
+                    insert.bindLong(1, i);
+                    insert.bindLong(2, queueIds[i]);
+                    insert.executeInsert();
+                }
+                insert.close();
+            }
+            SQLiteStatement state = db.compileStatement("INSERT OR REPLACE INTO " +
+                    TABLE_PLAYBACK_STATE + " (" + COL_ID + ", " + COL_SONG_ID + ", " +
+                    COL_POSITION_MS + ", " + COL_UPDATED_AT + ") VALUES (0, ?, ?, ?)");
+            state.bindLong(1, songId);
+            state.bindLong(2, positionMs);
+            state.bindLong(3, System.currentTimeMillis());
+            state.executeInsert();
+            state.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The saved queue in order; songs deleted from the library since drop out
+    public PlayQueue getSavedQueue() {
         SQLiteDatabase db = this.getReadableDatabase();
-        return db.query(TABLE_SONGS, null,
-                COL_PATH + "=?", new String[]{path},
-                null, null, null);
+        Cursor cursor = db.rawQuery("SELECT q." + COL_SONG_ID + ", s." + COL_PATH +
+                " FROM " + TABLE_QUEUE + " q JOIN " + TABLE_SONGS + " s ON s." + COL_ID +
+                " = q." + COL_SONG_ID + " ORDER BY q." + COL_QUEUE_POSITION, null);
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(0);
+            paths[i] = cursor.getString(1);
+        }
+        cursor.close();
+        return new PlayQueue(ids, paths);
+    }
+
+    // {song_id, position_ms}, or null if nothing was ever played
+    public long[] getPlaybackCheckpoint() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor cursor = db.query(TABLE_PLAYBACK_STATE, new String[]{COL_SONG_ID, COL_POSITION_MS},
+                COL_ID + "=0", null, null, null, null);
+        long[] checkpoint = cursor.moveToFirst()
+                ? new long[]{cursor.getLong(0), cursor.getLong(1)} : null;
+        cursor.close();
+        return checkpoint;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.view.*;
+import android.widget.*;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Locale;
+
+// The download list, newest job last. Progress updates rebind just the job's row.
+public class DownloadAdapter extends RecyclerView.Adapter<DownloadAdapter.ViewHolder> {
+
+    public interface OnJobClickListener {
+        void onJobClick(DownloadJob job);
+    }
+
+    public interface OnJobLongClickListener {
+        void onJobLongClick(DownloadJob job);
+    }
+
+    private final LayoutInflater inflater;
+    private final ArrayList<DownloadJob> jobs = new ArrayList<>();
+    private OnJobClickListener clickListener;
+    private OnJobLongClickListener longClickListener;
+
+    public DownloadAdapter(Context context) {
+        inflater = LayoutInflater.from(context);
+    }
+
+    public void setOnJobClickListener(OnJobClickListener listener) {
+        clickListener = listener;
+    }
+
+    public void setOnJobLongClickListener(OnJobLongClickListener listener) {
+        longClickListener = listener;
+    }
+
+    public void update(DownloadJob job) {
+        for (int i = 0; i < jobs.size(); i++) {
+            if (jobs.get(i).url.equals(job.url)) {
+                jobs.set(i, job);
+                notifyItemChanged(i);
+                return;
+            }
+        }
+        jobs.add(job);
+        notifyItemInserted(jobs.size() - 1);
+    }
+
+    public void remove(String url) {
+        for (int i = 0; i < jobs.size(); i++) {
+            if (jobs.get(i).url.equals(url)) {
+                jobs.remove(i);
+                notifyItemRemoved(i);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return jobs.size();
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final ProgressBar progress;
+        final TextView status;
+
+        ViewHolder(View view) {
+            super(view);
+            title = view.findViewById(R.id.downloadTitle);
+            progress = view.findViewById(R.id.downloadItemProgress);
+            status = view.findViewById(R.id.downloadStatus);
+            view.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && clickListener != null) {
+                    clickListener.onJobClick(jobs.get(position));
+                }
+            });
+            view.setOnLongClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position == RecyclerView.NO_POSITION || longClickListener == null) return false;
+                longClickListener.onJobLongClick(jobs.get(position));
+                return true;
+            });
+        }
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(inflater.inflate(R.layout.download_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        DownloadJob job = jobs.get(position);
+        holder.title.setText(job.path != null ? new File(job.path).getName() : job.url);
+        boolean known = job.total > 0;
+        holder.progress.setVisibility(job.status == DownloadJob.DONE ? View.GONE : View.VISIBLE);
+        holder.progress.setIndeterminate(job.status == DownloadJob.RUNNING && !known);
+        holder.progress.setProgress(known ? (int) (job.downloaded * 1000 / job.total) : 0);
+        switch (job.status) {
+            case DownloadJob.QUEUED:
+                holder.status.setText(job.error != null ? "Waiting to retry: " + job.error : "Queued");
+                break;
+            case DownloadJob.RUNNING:
+                holder.status.setText((known
+                        ? formatBytes(job.downloaded) + " / " + formatBytes(job.total)
+                        : formatBytes(job.downloaded)) + " (tap to play now)");
+                break;
+            case DownloadJob.DONE:
+                holder.status.setText("Saved in " + new File(job.path).getParent());
+                break;
+            default:
+                holder.status.setText("Failed: " + job.error + " (tap to retry, hold to remove)");
+                break;
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024) return (bytes / 1024) + " KB";
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024f * 1024f));
+    }
+}
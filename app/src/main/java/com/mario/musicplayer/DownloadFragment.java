@@ -2,126 +2,175 @@ package com.mario.musicplayer;
 
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.media.MediaScannerConnection;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Adds links to the DownloadQueue and shows its jobs. The transfers belong to the queue, so
+// leaving this screen doesn't stop them; the list just re-subscribes when it comes back.
 public class DownloadFragment extends Fragment {
 
     private EditText urlInput;
     private Button downloadButton;
-    private ProgressBar progressBar;
+    private DownloadAdapter adapter;
+    private DownloadQueue queue;
     private Context context;
 
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final DownloadQueue.Listener jobListener = new DownloadQueue.Listener() {
+        @Override
+        public void onJobChanged(DownloadJob job) {
+            adapter.update(job);
+        }
+
+        @Override
+        public void onJobRemoved(String url) {
+            adapter.remove(url);
+        }
+
+        @Override
+        public void onBatchFinished(DownloadQueue.Batch batch) {
+            if (batch.paths.isEmpty() && batch.failed.isEmpty()) return; // Nothing was queued
+            Toast.makeText(context, "Import finished: " + batch.paths.size() + " downloaded, "
+                    + batch.failed.size() + " failed", Toast.LENGTH_LONG).show();
+        }
+    };
+
+    // A text file of links, one per line or separated by spaces
+    private final ActivityResultLauncher<String> importLauncher =
+            registerForActivityResult(new ActivityResultContracts.GetContent(), uri -> {
+                if (uri != null) importFile(uri);
+            });
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_download, container, false);
 
         context = requireContext();
+        queue = DownloadQueue.getInstance(context);
         urlInput = view.findViewById(R.id.urlInput);
         downloadButton = view.findViewById(R.id.downloadButton);
-        progressBar = view.findViewById(R.id.downloadProgress);
 
-        progressBar.setVisibility(View.GONE);
+        RecyclerView list = view.findViewById(R.id.downloadList);
+        list.setLayoutManager(new LinearLayoutManager(context));
+        adapter = new DownloadAdapter(context);
+        adapter.setOnJobClickListener(job -> {
+            if (job.status == DownloadJob.FAILED) {
+                queue.retry(job.url);
+            } else if (job.status == DownloadJob.RUNNING || job.status == DownloadJob.DONE) {
+                // A running one plays from the bytes it has so far
+                Intent intent = new Intent(context, MusicService.class);
+                intent.setAction(MusicService.ACTION_PLAY_DOWNLOAD);
+                intent.putExtra("url", job.url);
+                context.startService(intent);
+            }
+        });
+        adapter.setOnJobLongClickListener(this::confirmRemove);
+        list.setAdapter(adapter);
 
         downloadButton.setOnClickListener(v -> {
-            String ytUrl = urlInput.getText().toString().trim();
-            if (ytUrl.isEmpty()) {
+            List<String> urls = splitUrls(urlInput.getText().toString());
+            if (urls.isEmpty()) {
                 Toast.makeText(context, "Please enter a URL", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (urls.size() > 1) {
+                enqueueAll(urls);
+                urlInput.setText("");
+                return;
+            }
+            DownloadJob job = queue.enqueue(urls.get(0));
+            if (job.status == DownloadJob.DONE) {
+                Toast.makeText(context, "Already downloaded", Toast.LENGTH_SHORT).show();
             } else {
-                downloadMusicFromApi(ytUrl);
+                urlInput.setText("");
             }
         });
 
+        view.findViewById(R.id.importButton).setOnClickListener(v -> importLauncher.launch("text/*"));
+
+        queue.addListener(jobListener);
         return view;
     }
 
-    private void downloadMusicFromApi(String ytUrl) {
-        progressBar.setVisibility(View.VISIBLE);
+    // Stops the job if it is running and takes it off the list; a finished file stays in the library
+    private void confirmRemove(DownloadJob job) {
+        new AlertDialog.Builder(context)
+                .setTitle("Remove download?")
+                .setMessage(job.url)
+                .setPositiveButton("Remove", (dialog, which) -> queue.remove(job.url))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void enqueueAll(List<String> urls) {
+        DownloadQueue.Batch batch = queue.enqueueAll(urls);
+        String message = "Queued " + (batch.total - batch.skipped - batch.invalid) + " of " + batch.total;
+        if (batch.skipped > 0) message += ", " + batch.skipped + " already there";
+        if (batch.invalid > 0) message += ", " + batch.invalid + " not links";
+        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+    }
+
+    // Read off the main thread; a picked file may come from a slow provider
+    private void importFile(Uri uri) {
         new Thread(() -> {
-            try {
-                SharedPreferences prefs = context.getSharedPreferences("music_player_prefs", Context.MODE_PRIVATE);
-                String baseUrl = prefs.getString("server_url", "https://f7bba52b-4af0-4efa-9b26-23a593b1826b-00-hxlccw5fjxp5.pike.replit.dev");
-                String apiUrl = baseUrl + "/download?url=" + URLEncoder.encode(ytUrl, "UTF-8");
-                URL url = new URL(apiUrl);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.connect();
-
-                if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                    File musicDir = new File(Environment.getExternalStorageDirectory(), "Music");
-                    if (!musicDir.exists()) musicDir.mkdirs();
-
-                    String tempFileName = "song_" + System.currentTimeMillis() + ".mp3";
-                    String contentDisp = conn.getHeaderField("Content-Disposition");
-                    if (contentDisp != null && contentDisp.contains("filename=")) {
-                        int start = contentDisp.indexOf("filename=") + 9;
-                        tempFileName = contentDisp.substring(start).replace("\"", "").trim();
-                    }
-
-                    final String fileName = tempFileName;
-                    File outFile = new File(musicDir, fileName);
-
-                    InputStream in = new BufferedInputStream(conn.getInputStream());
-                    FileOutputStream out = new FileOutputStream(outFile);
-
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, len);
-                    }
-
-                    out.flush();
-                    out.close();
-                    in.close();
-
-                    requireActivity().runOnUiThread(() -> {
-                        progressBar.setVisibility(View.GONE);
-                        Toast.makeText(context, "Saved as " + fileName + " in /Music", Toast.LENGTH_LONG).show();
-
-                        // Scan and notify
-                        MediaScannerConnection.scanFile(
-                                context,
-                                new String[]{outFile.getAbsolutePath()},
-                                null,
-                                (path, uri) -> requireActivity().runOnUiThread(() -> {
-                                    Toast.makeText(context, "New song added to library", Toast.LENGTH_SHORT).show();
-                                    context.sendBroadcast(new Intent("SONG_ADDED"));
-                                }));
-                    });
+            StringBuilder text = new StringBuilder();
+            try (InputStream in = context.getContentResolver().openInputStream(uri)) {
+                if (in == null) throw new FileNotFoundException(uri.toString());
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) text.append(line).append('\n');
+            } catch (IOException e) {
+                e.printStackTrace();
+                mainHandler.post(() -> Toast.makeText(context, "Couldn't read the file", Toast.LENGTH_SHORT).show());
+                return;
+            }
+            List<String> urls = splitUrls(text.toString());
+            mainHandler.post(() -> {
+                if (urls.isEmpty()) {
+                    Toast.makeText(context, "No links in that file", Toast.LENGTH_SHORT).show();
                 } else {
-                    showError("Failed to download (Response code: " + conn.getResponseCode() + ")");
+                    enqueueAll(urls);
                 }
-
-                conn.disconnect();
-            } catch (Exception e) {
-                showError("Error: " + e.getMessage());
-            }
+            });
         }).start();
     }
 
-    private void showError(String msg) {
-        requireActivity().runOnUiThread(() -> {
-            progressBar.setVisibility(View.GONE);
-            Toast.makeText(context, msg, Toast.LENGTH_SHORT).show();
-        });
+    private static List<String> splitUrls(String text) {
+        text = text.trim();
+        if (text.isEmpty()) return new ArrayList<>();
+        return Arrays.asList(text.split("\\s+"));
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        queue.removeListener(jobListener);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package com.mario.musicplayer;
+
+// Immutable snapshot of one download, as handed to DownloadQueue listeners and stored in the
+// downloads table. url is the link the user entered, which also identifies the job.
+public final class DownloadJob {
+
+    public static final int QUEUED = 0;
+    public static final int RUNNING = 1;
+    public static final int DONE = 2;
+    public static final int FAILED = 3;
+
+    public final String url;
+    public final int status;
+    public final long downloaded;
+    public final long total; // -1 until the server says
+    public final int attempts;
+    public final String path; // Set once DONE
+    public final String error;
+
+    public DownloadJob(String url, int status, long downloaded, long total, int attempts,
+                       String path, String error) {
+        this.url = url;
+        this.status = status;
+        this.downloaded = downloaded;
+        this.total = total;
+        this.attempts = attempts;
+        this.path = path;
+        this.error = error;
+    }
+
+    DownloadJob withStatus(int status, String error) {
+        return new DownloadJob(url, status, downloaded, total, attempts, path, error);
+    }
+
+    DownloadJob withProgress(long downloaded, long total) {
+        return new DownloadJob(url, status, downloaded, total, attempts, path, error);
+    }
+
+    DownloadJob withAttempt() {
+        return new DownloadJob(url, RUNNING, downloaded, total, attempts + 1, path, null);
+    }
+
+    DownloadJob withPath(String path) {
+        return new DownloadJob(url, DONE, downloaded, total, attempts, path, null);
+    }
+
+    public boolean isActive() {
+        return status == QUEUED || status == RUNNING;
+    }
+}
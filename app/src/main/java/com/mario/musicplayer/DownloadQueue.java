@@ -0,0 +1,419 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Runs downloads for the whole process, so they outlive the fragment that started them.
+// Jobs are kept in the database: anything queued or interrupted when the process died is
+// picked up again on the next start, and the Downloader resumes its .part file. At most
+// getParallelism() transfers run at once; a failed job is retried with growing delays before
+// it is marked FAILED. The UI only subscribes to job snapshots.
+public class DownloadQueue {
+
+    public interface Listener {
+        // On the main thread, for every change to a job including progress
+        void onJobChanged(DownloadJob job);
+
+        // On the main thread, once every job of an enqueueAll() batch is done or has failed
+        default void onBatchFinished(Batch batch) {}
+
+        // On the main thread, after remove()
+        default void onJobRemoved(String url) {}
+    }
+
+    // One bulk import. The library hears about its tracks in one TRACK_ADDED when the last
+    // job settles, instead of one update per file.
+    public static final class Batch {
+        public final int total;
+        public int skipped; // Already downloaded or already queued
+        public int invalid; // Not an http(s) link
+        public final ArrayList<String> paths = new ArrayList<>();
+        public final ArrayList<String> failed = new ArrayList<>();
+        final ArrayList<Long> songIds = new ArrayList<>();
+        final HashSet<String> pending = new HashSet<>();
+
+        Batch(int total) {
+            this.total = total;
+        }
+    }
+
+    public static final String ACTION_TRACK_ADDED = "com.mario.musicplayer.TRACK_ADDED";
+    public static final String EXTRA_SONG_IDS = "song_ids";
+    public static final String PREF_PARALLELISM = "download_parallelism";
+    public static final int MAX_PARALLELISM = 4;
+    private static final String TAG = "DownloadQueue";
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_BASE_MS = 5000;
+    private static final long RETRY_MAX_MS = 5 * 60 * 1000;
+
+    private static DownloadQueue instance;
+
+    private final Context context;
+    private final DatabaseHelper db;
+    private final SharedPreferences prefs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService dbWriter = Executors.newSingleThreadExecutor();
+    private final ExecutorService transfers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "DownloadQueue");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Everything below is only touched on the main thread
+    private final LinkedHashMap<String, DownloadJob> jobs = new LinkedHashMap<>();
+    private final HashMap<String, Future<?>> running = new HashMap<>();
+    private final HashMap<String, Long> retryAt = new HashMap<>(); // uptimeMillis
+    private final HashMap<String, PartialDownload> partials = new HashMap<>();
+    private final Runnable pump = this::pump;
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+    // Only in memory: jobs resumed after a restart are ingested one by one
+    private final ArrayList<Batch> batches = new ArrayList<>();
+    private boolean loaded;
+
+    public static synchronized DownloadQueue getInstance(Context context) {
+        if (instance == null) instance = new DownloadQueue(context.getApplicationContext());
+        return instance;
+    }
+
+    private DownloadQueue(Context context) {
+        this.context = context;
+        db = DatabaseHelper.getInstance(context);
+        prefs = context.getSharedPreferences("music_player_prefs", Context.MODE_PRIVATE);
+        load();
+    }
+
+    // Jobs left RUNNING by a dead process go back in the queue
+    private void load() {
+        dbWriter.execute(() -> {
+            List<DownloadJob> saved = db.getDownloadJobs();
+            mainHandler.post(() -> {
+                for (DownloadJob job : saved) {
+                    // Added before the load finished; that one is newer
+                    if (jobs.containsKey(job.url)) continue;
+                    if (job.status == DownloadJob.RUNNING) job = job.withStatus(DownloadJob.QUEUED, null);
+                    jobs.put(job.url, job);
+                    notifyChanged(job);
+                }
+                loaded = true;
+                pump();
+            });
+        });
+    }
+
+    public int getParallelism() {
+        return Math.max(1, Math.min(MAX_PARALLELISM, prefs.getInt(PREF_PARALLELISM, 2)));
+    }
+
+    public void setParallelism(int parallelism) {
+        prefs.edit().putInt(PREF_PARALLELISM, parallelism).apply();
+        pump();
+    }
+
+    // Main thread. Replays every known job to the new listener.
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        for (DownloadJob job : jobs.values()) listener.onJobChanged(job);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public List<DownloadJob> getJobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public DownloadJob getJob(String url) {
+        return jobs.get(url);
+    }
+
+    // Main thread. The running transfer for url, for playing it while it downloads, or null if
+    // there is none. Readers keep working past the end of the transfer.
+    PartialDownload getPartial(String url) {
+        return partials.get(url);
+    }
+
+    // Main thread. The same URL twice is one job: an active one is left alone, a finished one
+    // whose file still exists is kept, and a failed one is retried.
+    public DownloadJob enqueue(String url) {
+        DownloadJob job = add(url);
+        pump();
+        return job;
+    }
+
+    // Main thread. Queues a whole list of links, e.g. a pasted or imported playlist. They
+    // share the usual parallelism limit, and the batch reports back through onBatchFinished().
+    public Batch enqueueAll(Collection<String> urls) {
+        LinkedHashSet<String> unique = new LinkedHashSet<>(urls);
+        Batch batch = new Batch(unique.size());
+        for (String url : unique) {
+            if (!url.startsWith("http://") && !url.startsWith("https://")) {
+                batch.invalid++;
+                continue;
+            }
+            DownloadJob existing = jobs.get(url);
+            DownloadJob job = add(url);
+            if (job == existing) batch.skipped++;
+            else batch.pending.add(url);
+        }
+        if (batch.pending.isEmpty()) {
+            notifyBatchFinished(batch);
+        } else {
+            batches.add(batch);
+            pump();
+        }
+        return batch;
+    }
+
+    private DownloadJob add(String url) {
+        DownloadJob existing = jobs.get(url);
+        if (existing != null) {
+            if (existing.isActive()) return existing;
+            if (existing.status == DownloadJob.DONE && existing.path != null && new File(existing.path).isFile()) {
+                return existing;
+            }
+        }
+        DownloadJob job = new DownloadJob(url, DownloadJob.QUEUED, 0, -1, 0, null, null);
+        update(job);
+        return job;
+    }
+
+    public void retry(String url) {
+        DownloadJob job = jobs.get(url);
+        if (job == null || job.status != DownloadJob.FAILED) return;
+        retryAt.remove(url);
+        update(new DownloadJob(url, DownloadJob.QUEUED, job.downloaded, job.total, 0, null, null));
+        pump();
+    }
+
+    // Stops the transfer if one is running and forgets the job; its .part file is kept, so
+    // adding the same link again picks up where it left off
+    public void remove(String url) {
+        Future<?> future = running.remove(url);
+        if (future != null) future.cancel(true);
+        partials.remove(url);
+        retryAt.remove(url);
+        if (jobs.remove(url) == null) return;
+        dbWriter.execute(() -> db.deleteDownloadJob(url));
+        for (Listener listener : new ArrayList<>(listeners)) listener.onJobRemoved(url);
+        settle(url, null, -1);
+        pump();
+    }
+
+    // Starts queued jobs, oldest first, while there is room. Jobs waiting out a retry delay
+    // are skipped, and pump() runs again when the first of them is due.
+    private void pump() {
+        if (!loaded) return;
+        mainHandler.removeCallbacks(pump);
+        int room = getParallelism() - running.size();
+        long now = SystemClock.uptimeMillis();
+        long nextRetry = Long.MAX_VALUE;
+        for (DownloadJob job : new ArrayList<>(jobs.values())) {
+            if (job.status != DownloadJob.QUEUED || running.containsKey(job.url)) continue;
+            Long due = retryAt.get(job.url);
+            if (due != null && due > now) {
+                nextRetry = Math.min(nextRetry, due);
+                continue;
+            }
+            if (room <= 0) break;
+            retryAt.remove(job.url);
+            start(job);
+            room--;
+        }
+        if (nextRetry != Long.MAX_VALUE) mainHandler.postAtTime(pump, nextRetry);
+    }
+
+    private void start(DownloadJob queued) {
+        DownloadJob job = queued.withAttempt();
+        update(job);
+        String url = job.url;
+        int attempt = job.attempts;
+        File dir = LibraryRoots.getDownloadDir(context);
+        if (dir == null) {
+            mainHandler.post(() -> onFailed(url, attempt, "No library folder to save to"));
+            return;
+        }
+        Downloader downloader = new Downloader(dir);
+        URL request;
+        try {
+            request = requestUrl(url);
+        } catch (Exception e) {
+            String message = e.toString();
+            mainHandler.post(() -> onFailed(url, attempt, message));
+            return;
+        }
+        PartialDownload partial = new PartialDownload(downloader.partFile(request));
+        partials.put(url, partial);
+        running.put(url, transfers.submit(() -> {
+            try {
+                Downloader.Result result = downloader.download(request,
+                        "song_" + System.currentTimeMillis() + ".mp3",
+                        (downloaded, total) -> {
+                            partial.onProgress(downloaded, total);
+                            mainHandler.post(() -> onProgress(url, downloaded, total));
+                        });
+                partial.onFinished(result.file);
+                long songId = ingest(result);
+                mainHandler.post(() -> onFinished(url, attempt, result.file, songId));
+            } catch (Exception e) {
+                partial.onFailed();
+                if (Thread.currentThread().isInterrupted()) return; // Removed
+                Log.w(TAG, "Download failed: " + url, e);
+                String message = e.getMessage() != null ? e.getMessage() : e.toString();
+                mainHandler.post(() -> onFailed(url, attempt, message));
+            }
+        }));
+    }
+
+    // Writes the finished file straight into the library, stamped, so neither the watcher nor
+    // the next scan opens it again. The server's tags are used when it sent them; otherwise
+    // the file is read once. Returns the new row's id, or -1 if that failed, in which case
+    // it is handed to the scanner like any other new file. The watcher skips renames out of
+    // .part files, so it doesn't race this.
+    private long ingest(Downloader.Result result) {
+        File file = result.file;
+        try {
+            Song song;
+            if (result.title != null && result.artist != null && result.duration > 0) {
+                song = new Song(file.getAbsolutePath(), result.title, result.artist, result.album, null, null,
+                        0, 0, result.duration, null, file.lastModified(), file.length());
+            } else {
+                song = LibraryScanner.readMetadata(file, ArtStore.getInstance(context));
+            }
+            db.insertSong(song);
+            return db.getSongId(song.path);
+        } catch (Exception e) {
+            e.printStackTrace();
+            LibraryScanner.getInstance(context).scanPaths(Collections.singletonList(file.getAbsolutePath()));
+            return -1;
+        }
+    }
+
+    private URL requestUrl(String url) throws Exception {
+        String baseUrl = prefs.getString("server_url", "https://f7bba52b-4af0-4efa-9b26-23a593b1826b-00-hxlccw5fjxp5.pike.replit.dev");
+        return new URL(baseUrl + "/download?url=" + URLEncoder.encode(url, "UTF-8"));
+    }
+
+    private void onProgress(String url, long downloaded, long total) {
+        DownloadJob job = jobs.get(url);
+        if (job == null || job.status != DownloadJob.RUNNING) return;
+        job = job.withProgress(downloaded, total);
+        // Progress is only kept in memory; the .part file is the real record
+        jobs.put(url, job);
+        notifyChanged(job);
+    }
+
+    // Whether the job is still the run that reported back, and not removed or re-added since
+    private boolean isCurrentRun(DownloadJob job, int attempt) {
+        return job != null && job.status == DownloadJob.RUNNING && job.attempts == attempt;
+    }
+
+    private void onFinished(String url, int attempt, File file, long songId) {
+        DownloadJob job = jobs.get(url);
+        if (isCurrentRun(job, attempt)) {
+            running.remove(url);
+            partials.remove(url);
+            update(job.withPath(file.getAbsolutePath()));
+        }
+        if (!settle(url, file.getAbsolutePath(), songId)) {
+            trackAdded(Collections.singletonList(songId));
+            // For other apps; our own index already has it
+            MediaScanQueue.getInstance(context).scanFiles(Collections.singletonList(file.getAbsolutePath()));
+        }
+        pump();
+    }
+
+    private void onFailed(String url, int attempt, String message) {
+        DownloadJob job = jobs.get(url);
+        if (!isCurrentRun(job, attempt)) return;
+        running.remove(url);
+        partials.remove(url);
+        if (job.attempts >= MAX_ATTEMPTS) {
+            update(job.withStatus(DownloadJob.FAILED, message));
+            settle(url, null, -1);
+        } else {
+            // 5 s, 10 s, 20 s ... up to 5 min; the slot goes to the next job meanwhile
+            long delay = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << (job.attempts - 1));
+            retryAt.put(url, SystemClock.uptimeMillis() + delay);
+            update(job.withStatus(DownloadJob.QUEUED, message));
+        }
+        pump();
+    }
+
+    // Takes a job that is done (path set) or given up on out of its batch. Returns false if it
+    // wasn't part of one. The last job of a batch announces all of the batch's tracks, and hands
+    // them to the media scanner in one go.
+    private boolean settle(String url, String path, long songId) {
+        for (Batch batch : batches) {
+            if (!batch.pending.remove(url)) continue;
+            if (path != null) {
+                batch.paths.add(path);
+                batch.songIds.add(songId);
+            } else {
+                batch.failed.add(url);
+            }
+            if (batch.pending.isEmpty()) {
+                batches.remove(batch);
+                if (!batch.songIds.isEmpty()) trackAdded(batch.songIds);
+                if (!batch.paths.isEmpty()) MediaScanQueue.getInstance(context).scanFiles(batch.paths);
+                notifyBatchFinished(batch);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // The rows are already written; the list just requeries
+    private void trackAdded(List<Long> songIds) {
+        long[] ids = new long[songIds.size()];
+        int count = 0;
+        for (long id : songIds) {
+            if (id >= 0) ids[count++] = id;
+        }
+        if (count == 0) return;
+        if (count < ids.length) ids = Arrays.copyOf(ids, count);
+        // Explicit, so only this app's own receiver gets the ids
+        context.sendBroadcast(new Intent(ACTION_TRACK_ADDED)
+                .setPackage(context.getPackageName())
+                .putExtra(EXTRA_SONG_IDS, ids));
+    }
+
+    private void update(DownloadJob job) {
+        jobs.put(job.url, job);
+        dbWriter.execute(() -> db.saveDownloadJob(job));
+        notifyChanged(job);
+    }
+
+    private void notifyChanged(DownloadJob job) {
+        for (Listener listener : new ArrayList<>(listeners)) listener.onJobChanged(job);
+    }
+
+    private void notifyBatchFinished(Batch batch) {
+        for (Listener listener : new ArrayList<>(listeners)) listener.onBatchFinished(batch);
+    }
+}
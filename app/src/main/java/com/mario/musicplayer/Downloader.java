@@ -0,0 +1,292 @@
+package com.mario.musicplayer;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Streams an HTTP download into a hidden .part file next to its destination and renames it
+// into place only once every byte is on disk, so the library never sees a truncated file.
+// The .part file outlives a dropped connection or a killed process: the next attempt for the
+// same URL asks for the rest with a Range request, guarded by If-Range so a file that changed
+// on the server starts over instead of being spliced.
+public class Downloader {
+
+    public interface Listener {
+        // total is -1 while the server hasn't said. Throttled to a few calls a second.
+        void onProgress(long downloaded, long total);
+    }
+
+    // The finished file plus whatever tags the server sent along as X-Title, X-Artist,
+    // X-Album and X-Duration (seconds) headers, percent-encoded UTF-8. Null if not sent.
+    public static final class Result {
+        public final File file;
+        public final String title;
+        public final String artist;
+        public final String album;
+        public final int duration; // ms, 0 if not sent
+        final String name;
+
+        Result(File file, String name, String title, String artist, String album, int duration) {
+            this.file = file;
+            this.name = name;
+            this.title = title;
+            this.artist = artist;
+            this.album = album;
+            this.duration = duration;
+        }
+
+        Result withFile(File file) {
+            return new Result(file, name, title, artist, album, duration);
+        }
+    }
+
+    private static final String TAG = "Downloader";
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+
+    private final File dir;
+
+    public Downloader(File dir) {
+        this.dir = dir;
+    }
+
+    // Blocks until the file is complete and returns it with the server's tags. The name comes from
+    // Content-Disposition, else fallbackName. Interrupting the thread stops it and keeps the
+    // .part file for later.
+    public Result download(URL url, String fallbackName, Listener listener) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+        File part = partFile(url);
+        File validator = validatorFile(url);
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+            try {
+                Result response = fetch(url, part, validator, listener);
+                File target;
+                // Two downloads finishing with the same name must not both pick the same file
+                synchronized (Downloader.class) {
+                    target = uniqueFile(sanitize(response.name != null ? response.name : fallbackName));
+                    if (!part.renameTo(target)) throw new IOException("Can't rename to " + target);
+                }
+                validator.delete();
+                return response.withFile(target);
+            } catch (IOException e) {
+                // Timeouts are InterruptedIOExceptions too, and worth another attempt
+                if (Thread.currentThread().isInterrupted()) throw e;
+                lastError = e;
+                Log.w(TAG, "Attempt " + attempt + " failed at " + part.length() + " bytes: " + e);
+                if (attempt < MAX_ATTEMPTS) SystemClock.sleep(1000L * attempt);
+            }
+        }
+        throw lastError;
+    }
+
+    // Where download(url) keeps the bytes it has so far, e.g. for reading along while it runs.
+    // The file doesn't exist until the first bytes arrive.
+    public File partFile(URL url) {
+        return new File(dir, "." + hash(url.toString()) + ".part");
+    }
+
+    // The ETag or Last-Modified the .part file's bytes came with
+    File validatorFile(URL url) {
+        return new File(dir, "." + hash(url.toString()) + ".etag");
+    }
+
+    // One connection's worth of the download. Returns what the response headers said about the
+    // file; its file is still null.
+    private Result fetch(URL url, File part, File validator, Listener listener) throws IOException {
+        long offset = part.length();
+        String tag = offset > 0 ? readValidator(validator) : null;
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        boolean reusable = false;
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            // A compressed body's offsets wouldn't line up with the file's
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0 && tag != null) {
+                conn.setRequestProperty("Range", "bytes=" + offset + "-");
+                conn.setRequestProperty("If-Range", tag);
+            }
+            int code = conn.getResponseCode();
+            boolean append;
+            if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0
+                    && contentRangeStart(conn.getHeaderField("Content-Range")) == offset) {
+                append = true;
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                // Fresh start, or the server ignored the range or the file changed
+                append = false;
+                offset = 0;
+                writeValidator(validator, conn);
+            } else if (code == HttpURLConnection.HTTP_PARTIAL) {
+                part.delete();
+                validator.delete();
+                throw new IOException("Unexpected Content-Range " + conn.getHeaderField("Content-Range"));
+            } else if (code == 416 && offset > 0) {
+                // Nothing left to send: what we have is either all of it or stale
+                long total = contentRangeTotal(conn.getHeaderField("Content-Range"));
+                if (total == offset) return response(conn);
+                part.delete();
+                throw new IOException("Stale partial download discarded");
+            } else {
+                throw new IOException("HTTP " + code);
+            }
+
+            long length = conn.getContentLengthLong();
+            long total = length >= 0 ? offset + length : -1;
+            try (InputStream in = conn.getInputStream();
+                 FileOutputStream out = new FileOutputStream(part, append)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long downloaded = offset;
+                long lastReport = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException();
+                    out.write(buffer, 0, read);
+                    downloaded += read;
+                    long now = SystemClock.uptimeMillis();
+                    if (listener != null && now - lastReport >= PROGRESS_INTERVAL_MS) {
+                        lastReport = now;
+                        listener.onProgress(downloaded, total);
+                    }
+                }
+                if (total >= 0 && downloaded != total) {
+                    throw new IOException("Connection closed at " + downloaded + " of " + total + " bytes");
+                }
+                // On disk before the rename makes it visible
+                out.getFD().sync();
+                if (listener != null) listener.onProgress(downloaded, total >= 0 ? total : downloaded);
+            }
+            reusable = true;
+            return response(conn);
+        } finally {
+            // A body read to the end leaves the connection in the keep-alive pool, so the next
+            // download to the same server skips the TCP and TLS handshakes
+            if (!reusable) conn.disconnect();
+        }
+    }
+
+    private static Result response(HttpURLConnection conn) {
+        return new Result(null, fileName(conn), header(conn, "X-Title"), header(conn, "X-Artist"),
+                header(conn, "X-Album"), durationMs(header(conn, "X-Duration")));
+    }
+
+    private static String header(HttpURLConnection conn, String name) {
+        String value = conn.getHeaderField(name);
+        if (value == null) return null;
+        value = Uri.decode(value).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    // "215" or "215.4" seconds -> ms
+    private static int durationMs(String seconds) {
+        if (seconds == null) return 0;
+        try {
+            return (int) Math.max(0, Math.round(Double.parseDouble(seconds) * 1000));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String fileName(HttpURLConnection conn) {
+        String disposition = conn.getHeaderField("Content-Disposition");
+        if (disposition == null) return null;
+        int start = disposition.indexOf("filename=");
+        if (start < 0) return null;
+        String name = disposition.substring(start + 9);
+        int end = name.indexOf(';');
+        if (end >= 0) name = name.substring(0, end);
+        name = name.replace("\"", "").trim();
+        return name.isEmpty() ? null : name;
+    }
+
+    // "bytes 100-999/1000" -> 100
+    private static long contentRangeStart(String range) {
+        if (range == null || !range.startsWith("bytes ")) return -1;
+        int dash = range.indexOf('-');
+        try {
+            return dash > 6 ? Long.parseLong(range.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // "bytes */1000" or "bytes 100-999/1000" -> 1000
+    private static long contentRangeTotal(String range) {
+        if (range == null) return -1;
+        int slash = range.lastIndexOf('/');
+        try {
+            return slash >= 0 ? Long.parseLong(range.substring(slash + 1).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The ETag, or failing that Last-Modified; without either a resume can't be trusted
+    private static void writeValidator(File validator, HttpURLConnection conn) throws IOException {
+        String tag = conn.getHeaderField("ETag");
+        if (tag == null) tag = conn.getHeaderField("Last-Modified");
+        if (tag == null) {
+            validator.delete();
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(validator)) {
+            out.write(tag.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String readValidator(File validator) {
+        if (!validator.isFile()) return null;
+        try (FileInputStream in = new FileInputStream(validator)) {
+            byte[] bytes = new byte[(int) validator.length()];
+            int read = in.read(bytes);
+            return read > 0 ? new String(bytes, 0, read, StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String sanitize(String name) {
+        name = name.replace('/', '_').replace('\\', '_');
+        return name.startsWith(".") ? "_" + name : name;
+    }
+
+    // "Song.mp3", then "Song (1).mp3" and so on, so an existing file is never replaced
+    private File uniqueFile(String name) {
+        File file = new File(dir, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + " (" + i + ")" + ext);
+        }
+        return file;
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode());
+        }
+    }
+}
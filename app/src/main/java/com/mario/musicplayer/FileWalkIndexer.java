@@ -0,0 +1,55 @@
+package com.mario.musicplayer;
+
+import java.io.File;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// Lists the library by walking each root folder. Needs broad file access, and every new or
+// changed file is then opened to read its tags.
+class FileWalkIndexer implements LibraryIndexer {
+
+    private final List<File> roots;
+    private boolean complete;
+
+    FileWalkIndexer(List<File> roots) {
+        this.roots = roots;
+    }
+
+    @Override
+    public boolean list(List<Entry> out, BooleanSupplier cancelled) {
+        complete = true;
+        for (File root : roots) {
+            File[] files = root.listFiles();
+            // An unreadable root would look as if every song under it had been deleted
+            if (files == null) return false;
+            if (!walk(files, out, cancelled)) return false;
+        }
+        return true;
+    }
+
+    private boolean walk(File[] files, List<Entry> out, BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean()) return false;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                File[] children = f.listFiles();
+                if (children == null) {
+                    complete = false;
+                } else if (!walk(children, out, cancelled)) {
+                    return false;
+                }
+            } else if (AudioFormats.isAudioFile(f.getName())) {
+                out.add(new Entry(f.getAbsolutePath(), f.lastModified(), f.length(), null, false));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public void onScanCompleted() {
+    }
+}
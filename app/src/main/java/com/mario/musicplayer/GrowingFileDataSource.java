@@ -0,0 +1,90 @@
+package com.mario.musicplayer;
+
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+// Feeds MediaPlayer from a file that is still being downloaded. A read past what is on disk
+// blocks until the bytes arrive, so the player starts as soon as it has enough to decode and
+// simply buffers if it catches up with the network. The file stays open across the rename
+// at the end of the download, and reads carry on from the finished file.
+public class GrowingFileDataSource extends MediaDataSource {
+
+    private static final long POLL_MS = 50;
+    // No new bytes for this long and the read fails, rather than holding the player forever
+    private static final long STALL_TIMEOUT_MS = 60000;
+
+    private final PartialDownload download;
+    private RandomAccessFile file;
+    private volatile boolean closed;
+
+    GrowingFileDataSource(PartialDownload download) {
+        this.download = download;
+    }
+
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if (size == 0) return 0;
+        long lastLength = -1;
+        long stalledSince = System.currentTimeMillis();
+        while (true) {
+            if (closed) throw new IOException("Closed");
+            // Checked before the length, so a finish seen here means the length below is final
+            boolean finished = download.isFinished();
+            if (download.isFailed()) throw new IOException("Download failed");
+            RandomAccessFile in = open();
+            long length = in != null ? in.length() : 0;
+            if (position < length) {
+                in.seek(position);
+                return in.read(buffer, offset, (int) Math.min(size, length - position));
+            }
+            if (finished && in != null) return -1;
+
+            long now = System.currentTimeMillis();
+            if (length != lastLength) {
+                lastLength = length;
+                stalledSince = now;
+            } else if (now - stalledSince > STALL_TIMEOUT_MS) {
+                throw new IOException("Download stalled at " + length + " bytes");
+            }
+            try {
+                download.await(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // The .part file only appears with the first bytes, and may be renamed under us
+    private RandomAccessFile open() throws IOException {
+        if (file != null) return file;
+        File target = download.getFile();
+        if (!target.isFile()) return null;
+        try {
+            file = new RandomAccessFile(target, "r");
+        } catch (FileNotFoundException e) {
+            return null; // Renamed in between; the next pass asks again
+        }
+        return file;
+    }
+
+    // The full size once the server has said, otherwise unknown
+    @Override
+    public long getSize() {
+        return download.getTotal();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            if (file != null) file.close();
+            file = null;
+        }
+    }
+}
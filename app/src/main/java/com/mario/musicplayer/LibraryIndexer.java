@@ -0,0 +1,46 @@
+package com.mario.musicplayer;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// Where LibraryScanner learns which audio files exist. Implementations run on the scan
+// thread and should give up promptly once cancelled says so.
+interface LibraryIndexer {
+
+    // One file in the library. song is set when the index already knows the tags (with a zero
+    // stamp and no art), so the scanner doesn't open the file at all; its picture is read the
+    // first time it is shown. changed forces a re-read even when the stamps match.
+    final class Entry {
+        final String path;
+        final long lastModified;
+        final long size;
+        final Song song;
+        final boolean changed;
+
+        Entry(String path, long lastModified, long size, Song song, boolean changed) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.song = song;
+            this.changed = changed;
+        }
+    }
+
+    // Adds every audio file in the library to out. False if cancelled or the index could not
+    // be read, in which case the scanner deletes nothing.
+    boolean list(List<Entry> out, BooleanSupplier cancelled);
+
+    // False if the last list() had to skip a folder it couldn't read. What it did find is
+    // still indexed, but the scanner deletes nothing after it.
+    boolean isComplete();
+
+    // After a scan that used the listing has been written in full
+    void onScanCompleted();
+
+    // MediaStore keeps modification times in whole seconds, the file system in milliseconds.
+    // Stamps are compared to the second, so switching indexers doesn't make every file look
+    // changed.
+    static boolean sameStamp(long[] stamp, long lastModified, long size) {
+        return stamp != null && stamp[0] / 1000 == lastModified / 1000 && stamp[1] == size;
+    }
+}
@@ -0,0 +1,123 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+// The folders the library is built from, chosen in Settings. Defaults to the Music folder on
+// internal storage. Candidates are the Music folder and the whole of every mounted volume,
+// SD cards included.
+public final class LibraryRoots {
+
+    static final String PREF_ROOTS = "library_roots";
+
+    private LibraryRoots() {
+    }
+
+    public static File defaultRoot() {
+        return new File(Environment.getExternalStorageDirectory(), "Music");
+    }
+
+    // The enabled roots that exist, without any root that sits inside another one, so
+    // nothing is listed or watched twice
+    public static List<File> get(Context context) {
+        ArrayList<File> roots = new ArrayList<>();
+        for (String path : getEnabledPaths(context)) {
+            File dir = new File(path);
+            if (dir.isDirectory()) roots.add(dir);
+        }
+        ArrayList<File> result = new ArrayList<>();
+        for (File root : roots) {
+            boolean nested = false;
+            for (File other : roots) {
+                if (other != root && root.getAbsolutePath().startsWith(other.getAbsolutePath() + File.separator)) {
+                    nested = true;
+                    break;
+                }
+            }
+            if (!nested) result.add(root);
+        }
+        return result;
+    }
+
+    // Where downloads are saved: the Music folder if the library includes it, else the first
+    // enabled root. Null if no enabled root is there, as a file saved anywhere else would never
+    // show up in the library.
+    public static File getDownloadDir(Context context) {
+        List<File> roots = get(context);
+        File music = defaultRoot();
+        if (roots.contains(music) || isUnder(music.getAbsolutePath(), roots)) return music;
+        return roots.isEmpty() ? null : roots.get(0);
+    }
+
+    // Enabled roots that aren't there right now, e.g. on an SD card that was taken out. Songs
+    // under them stay in the library; only turning a root off in Settings removes them.
+    public static List<File> getMissing(Context context) {
+        ArrayList<File> missing = new ArrayList<>();
+        for (String path : getEnabledPaths(context)) {
+            File dir = new File(path);
+            if (!dir.isDirectory()) missing.add(dir);
+        }
+        return missing;
+    }
+
+    static boolean isUnder(String path, List<File> roots) {
+        for (File root : roots) {
+            if (path.startsWith(root.getAbsolutePath() + File.separator)) return true;
+        }
+        return false;
+    }
+
+    public static Set<String> getEnabledPaths(Context context) {
+        Set<String> saved = prefs(context).getStringSet(PREF_ROOTS, null);
+        if (saved == null) return Collections.singleton(defaultRoot().getAbsolutePath());
+        return new HashSet<>(saved);
+    }
+
+    public static void setEnabledPaths(Context context, Set<String> paths) {
+        prefs(context).edit().putStringSet(PREF_ROOTS, new HashSet<>(paths)).apply();
+    }
+
+    // Music folders first, then whole volumes, then anything enabled earlier that is not
+    // mounted right now
+    public static List<String> getCandidates(Context context) {
+        LinkedHashSet<String> music = new LinkedHashSet<>();
+        LinkedHashSet<String> volumes = new LinkedHashSet<>();
+        for (File volume : getVolumes(context)) {
+            music.add(new File(volume, "Music").getAbsolutePath());
+            volumes.add(volume.getAbsolutePath());
+        }
+        LinkedHashSet<String> all = new LinkedHashSet<>(music);
+        all.addAll(volumes);
+        all.addAll(getEnabledPaths(context));
+        return new ArrayList<>(all);
+    }
+
+    // Every mounted shared-storage volume. getExternalFilesDirs() has one entry per volume,
+    // under <volume>/Android/data/<package>/files.
+    private static List<File> getVolumes(Context context) {
+        ArrayList<File> volumes = new ArrayList<>();
+        volumes.add(Environment.getExternalStorageDirectory());
+        for (File dir : context.getExternalFilesDirs(null)) {
+            if (dir == null) continue;
+            String path = dir.getAbsolutePath();
+            int android = path.indexOf(File.separator + "Android" + File.separator);
+            if (android <= 0) continue;
+            File volume = new File(path.substring(0, android));
+            if (!volumes.contains(volume)) volumes.add(volume);
+        }
+        return volumes;
+    }
+
+    private static SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences("music_player_prefs", Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,338 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Lists the music folder off the main thread through a LibraryIndexer, extracts metadata for
+// new or changed files on a small worker pool and writes them to the database in batches,
+// telling the UI after each one. There is one scanner per process, so an activity that is
+// recreated (rotation) just re-attaches to the running scan.
+public class LibraryScanner {
+
+    public interface Listener {
+        void onLibraryChanged();
+        void onScanProgress(int processed, int total);
+        void onScanFinished(boolean cancelled);
+    }
+
+    private static final int BATCH_SIZE = 50;
+
+    // Which LibraryIndexer lists the library, picked in Settings
+    public static final String PREF_INDEXER = "library_indexer";
+    public static final String INDEXER_FILES = "files";
+    public static final String INDEXER_MEDIASTORE = "mediastore";
+
+    private static LibraryScanner instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final DatabaseHelper db;
+    private final ArtStore artStore;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final int poolSize;
+    private final ExecutorService updates = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "LibraryScanner-updates");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Everything below is only touched on the main thread
+    private Listener listener;
+    private Thread scanThread;
+    private ExecutorService workers;
+    private volatile int generation;
+    private boolean running;
+    private boolean started;
+    private boolean rescanRequested;
+    private int processed, total;
+
+    public static synchronized LibraryScanner getInstance(Context context) {
+        if (instance == null) instance = new LibraryScanner(context.getApplicationContext());
+        return instance;
+    }
+
+    private LibraryScanner(Context context) {
+        this.context = context;
+        prefs = context.getSharedPreferences("music_player_prefs", Context.MODE_PRIVATE);
+        db = DatabaseHelper.getInstance(context);
+        artStore = ArtStore.getInstance(context);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        poolSize = Math.max(2, Math.min(4, cpus / 2));
+    }
+
+    // Attaching replays the current state, so a new listener never has to start a second
+    // scan to catch up. Everything already found is in the database.
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener == null) return;
+        if (running) listener.onScanProgress(processed, total);
+        else listener.onScanFinished(false);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // True once a scan has been started in this process and not cancelled
+    public boolean hasStarted() {
+        return started;
+    }
+
+    // Starts a scan, or queues one more pass if a scan is already in flight
+    public void start() {
+        if (running) {
+            rescanRequested = true;
+            return;
+        }
+        running = true;
+        started = true;
+        rescanRequested = false;
+        processed = 0;
+        total = 0;
+        final int gen = ++generation;
+        if (listener != null) listener.onScanProgress(0, 0);
+
+        workers = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "LibraryScanner-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        final ExecutorService pool = workers;
+        final LibraryIndexer indexer = createIndexer();
+        scanThread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean completed = scan(gen, pool, indexer);
+            pool.shutdown();
+            mainHandler.post(() -> finish(gen, !completed));
+        }, "LibraryScanner");
+        scanThread.start();
+    }
+
+    private LibraryIndexer createIndexer() {
+        // Only the enabled roots that exist are listed; songs under a root that was turned off
+        // drop out, ones under a missing root are kept by scan()
+        List<File> roots = LibraryRoots.get(context);
+        if (INDEXER_MEDIASTORE.equals(prefs.getString(PREF_INDEXER, INDEXER_FILES))) {
+            return new MediaStoreIndexer(context, roots);
+        }
+        return new FileWalkIndexer(roots);
+    }
+
+    public void cancel() {
+        if (!running) return;
+        generation++;
+        if (workers != null) workers.shutdownNow();
+        if (scanThread != null) scanThread.interrupt();
+        finish(generation, true);
+    }
+
+    private void finish(int gen, boolean cancelled) {
+        if (gen != generation) return;
+        running = false;
+        if (cancelled) started = false;
+        workers = null;
+        scanThread = null;
+        if (listener != null) listener.onScanFinished(cancelled);
+        if (rescanRequested && !cancelled) start();
+    }
+
+    // Re-indexes just the given files without walking the library: ones that are new or
+    // changed since they were indexed are (re-)extracted, ones that are gone are removed.
+    public void scanPaths(Collection<String> paths) {
+        final ArrayList<String> targets = new ArrayList<>(paths);
+        updates.execute(() -> {
+            ArrayList<Song> changed = new ArrayList<>();
+            ArrayList<String> removed = new ArrayList<>();
+            List<File> missingRoots = LibraryRoots.getMissing(context);
+            for (String path : targets) {
+                File file = new File(path);
+                if (!file.isFile()) {
+                    if (!LibraryRoots.isUnder(path, missingRoots)) removed.add(path);
+                    continue;
+                }
+                // Already ingested as it is now, e.g. a download the queue wrote straight in
+                long[] stamp = db.getFileStamp(path);
+                if (LibraryIndexer.sameStamp(stamp, file.lastModified(), file.length())) continue;
+                changed.add(readMetadata(file, artStore));
+            }
+            if (changed.isEmpty() && removed.isEmpty()) return;
+            db.insertSongs(changed);
+            db.deleteSongs(removed);
+            mainHandler.post(() -> {
+                if (listener != null) listener.onLibraryChanged();
+            });
+        });
+    }
+
+    private boolean isCurrent(int gen) {
+        return gen == generation && !Thread.currentThread().isInterrupted();
+    }
+
+    // Runs on the scan thread. A rescan is a diff against the stamps already in the
+    // database: unchanged files are skipped, added or changed ones are re-extracted and
+    // rows whose file has disappeared are deleted.
+    private boolean scan(int gen, ExecutorService pool, LibraryIndexer indexer) {
+        Map<String, long[]> stamps = db.getFileStamps();
+        ArrayList<LibraryIndexer.Entry> entries = new ArrayList<>();
+        if (!indexer.list(entries, () -> !isCurrent(gen))) return false;
+
+        final int fileCount = entries.size();
+        CompletionService<Song> completion = new ExecutorCompletionService<>(pool);
+        ArrayList<Song> indexed = new ArrayList<>();
+        int pending = 0;
+        for (LibraryIndexer.Entry entry : entries) {
+            long[] stamp = stamps.remove(entry.path);
+            if (!entry.changed && LibraryIndexer.sameStamp(stamp, entry.lastModified, entry.size)) {
+                continue;
+            }
+            if (entry.song != null) {
+                // The index had the tags: written as they are, the picture is read on first display
+                indexed.add(withPendingArt(entry));
+                artStore.forget(entry.path);
+            } else {
+                final File song = new File(entry.path);
+                completion.submit(() -> readMetadata(song, artStore));
+                pending++;
+            }
+        }
+        // Whatever is left in the map was not seen on disk, unless the listing missed a folder.
+        // Songs on a root that is enabled but not mounted are kept for when it comes back.
+        List<File> missingRoots = LibraryRoots.getMissing(context);
+        stamps.keySet().removeIf(path -> LibraryRoots.isUnder(path, missingRoots));
+        boolean removed = indexer.isComplete() && !stamps.isEmpty();
+        if (removed) db.deleteSongs(stamps.keySet());
+        db.insertSongs(indexed);
+
+        int done = fileCount - pending;
+        deliver(gen, removed || !indexed.isEmpty(), done, fileCount);
+
+        ArrayList<Song> batch = new ArrayList<>();
+        while (pending > 0) {
+            if (!isCurrent(gen)) return false;
+            try {
+                batch.add(completion.take().get());
+            } catch (InterruptedException e) {
+                return false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+            pending--;
+            done++;
+            if (batch.size() >= BATCH_SIZE || pending == 0) {
+                writeBatch(gen, batch, done, fileCount);
+                batch = new ArrayList<>();
+            }
+        }
+        // Only once every new row is written, or their fresh thumbnails would look orphaned
+        if (removed) artStore.prune(db.getArtKeys());
+        if (!isCurrent(gen)) return false;
+        indexer.onScanCompleted();
+        return true;
+    }
+
+    private void writeBatch(int gen, List<Song> batch, int processed, int total) {
+        db.insertSongs(batch);
+        deliver(gen, !batch.isEmpty(), processed, total);
+    }
+
+    private void deliver(int gen, boolean changed, int processed, int total) {
+        mainHandler.post(() -> {
+            if (gen != generation) return;
+            this.processed = processed;
+            this.total = total;
+            if (listener != null) {
+                if (changed) listener.onLibraryChanged();
+                listener.onScanProgress(processed, total);
+            }
+        });
+    }
+
+    // Tags from the index, stamped, with a picture ArtStore reads from the file when needed
+    private static Song withPendingArt(LibraryIndexer.Entry entry) {
+        Song song = entry.song;
+        return new Song(song.path, song.title, song.artist, song.album, song.albumArtist, song.genre,
+                song.trackNumber, song.year, song.duration, ArtStore.pendingKey(entry.path),
+                entry.lastModified, entry.size);
+    }
+
+    // Safe to call from any background thread. Unreadable files still get a row under their
+    // file name, so they stay in the list and are not retried until they change on disk.
+    public static Song readMetadata(File file, ArtStore artStore) {
+        String path = file.getAbsolutePath();
+        // Stamp before extracting, so a write that races the retriever is picked up next scan
+        long lastModified = file.lastModified();
+        long size = file.length();
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+            String artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
+            String album = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUM);
+            String albumArtist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ALBUMARTIST);
+            String genre = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_GENRE);
+            String track = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_CD_TRACK_NUMBER);
+            String year = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_YEAR);
+            String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            String artKey = artStore.put(retriever.getEmbeddedPicture());
+
+            int duration = (durationStr != null) ? Integer.parseInt(durationStr) : 0;
+
+            return new Song(path,
+                    title != null ? title : "Unknown Title",
+                    artist != null ? artist : "Unknown Artist",
+                    album,
+                    albumArtist,
+                    genre,
+                    leadingInt(track),
+                    leadingInt(year),
+                    duration,
+                    artKey,
+                    lastModified,
+                    size);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new Song(path, file.getName(), "Unknown Artist", null, null, null, 0, 0, 0, null,
+                    lastModified, size);
+        } finally {
+            try {
+                retriever.release();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // "3/12" -> 3, "2003-05-01" -> 2003, anything unreadable -> 0
+    private static int leadingInt(String value) {
+        if (value == null) return 0;
+        int result = 0;
+        for (int i = 0; i < value.length() && i < 9; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') break;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+}
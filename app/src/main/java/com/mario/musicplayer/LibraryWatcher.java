@@ -0,0 +1,256 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+// Keeps the library in step with files copied in over USB or by other apps while we run.
+// FileObserver only watches one directory, so there is one per folder under the roots, capped
+// in number and depth. Events are coalesced into a set of paths and handed to
+// LibraryScanner.scanPaths() once things go quiet; a burst too big to track falls back to
+// a normal rescan, which diffs against the stored stamps anyway.
+public class LibraryWatcher {
+
+    private static final String TAG = "LibraryWatcher";
+    private static final int MAX_WATCHED_DIRS = 256;
+    private static final int MAX_DEPTH = 8;
+    private static final int MAX_PENDING = 1000;
+    private static final long QUIET_MS = 1000;
+    private static final long MAX_DELAY_MS = 5000;
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.CREATE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static LibraryWatcher instance;
+
+    private final LibraryScanner scanner;
+    private final DatabaseHelper db;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = this::flush;
+
+    // Only touched on handler's thread
+    private final HashMap<String, DirObserver> observers = new HashMap<>();
+    private boolean limitLogged;
+
+    // Filled from the observer thread, guarded by this
+    private final LinkedHashSet<String> pendingPaths = new LinkedHashSet<>();
+    private final HashMap<String, Integer> pendingDirs = new HashMap<>();
+    private boolean overflowed;
+    private long firstPendingAt;
+
+    public static synchronized LibraryWatcher getInstance(Context context) {
+        if (instance == null) instance = new LibraryWatcher(context.getApplicationContext());
+        return instance;
+    }
+
+    private LibraryWatcher(Context context) {
+        scanner = LibraryScanner.getInstance(context);
+        db = DatabaseHelper.getInstance(context);
+        HandlerThread thread = new HandlerThread("LibraryWatcher");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // Replaces whatever was watched before, e.g. after the roots changed in Settings. The
+    // folder cap is shared by all roots.
+    public void start(List<File> roots) {
+        handler.post(() -> {
+            unwatchAll();
+            for (File root : roots) watchTree(root, 0, null);
+        });
+    }
+
+    public void stop() {
+        handler.post(() -> {
+            unwatchAll();
+            handler.removeCallbacks(flush);
+            synchronized (this) {
+                pendingPaths.clear();
+                pendingDirs.clear();
+                overflowed = false;
+                firstPendingAt = 0;
+            }
+        });
+    }
+
+    private void unwatchAll() {
+        for (DirObserver observer : observers.values()) observer.stopWatching();
+        observers.clear();
+        limitLogged = false;
+    }
+
+    // Breadth first, so a tree deeper or wider than the caps still has its top levels
+    // watched. Audio files found on the way go to found, if it is not null; past the folder
+    // cap the walk goes on just for those, so a new folder's files are indexed even if it
+    // can't be watched.
+    private void watchTree(File root, int rootDepth, ArrayList<String> found) {
+        ArrayDeque<File> dirs = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        dirs.add(root);
+        depths.add(rootDepth);
+        while (!dirs.isEmpty()) {
+            File dir = dirs.poll();
+            int depth = depths.poll();
+            String path = dir.getAbsolutePath();
+            if (!observers.containsKey(path)) {
+                if (observers.size() >= MAX_WATCHED_DIRS) {
+                    if (!limitLogged) Log.w(TAG, "Watch limit reached, not watching " + path + " and below");
+                    limitLogged = true;
+                    if (found == null) return;
+                } else {
+                    DirObserver observer = new DirObserver(path, depth);
+                    observer.startWatching();
+                    observers.put(path, observer);
+                }
+            }
+            File[] children = dir.listFiles();
+            if (children == null) continue;
+            for (File child : children) {
+                if (child.getName().startsWith(".")) continue;
+                if (child.isDirectory()) {
+                    if (depth < MAX_DEPTH) {
+                        dirs.add(child);
+                        depths.add(depth + 1);
+                    }
+                } else if (found != null && AudioFormats.isAudioFile(child.getName())) {
+                    found.add(child.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    private void unwatchTree(String dir) {
+        String prefix = dir + File.separator;
+        Iterator<HashMap.Entry<String, DirObserver>> it = observers.entrySet().iterator();
+        while (it.hasNext()) {
+            HashMap.Entry<String, DirObserver> entry = it.next();
+            if (entry.getKey().equals(dir) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    // Observer thread
+    private synchronized void onPathChanged(String path, boolean isDir, int depth) {
+        if (overflowed) return;
+        if (pendingPaths.size() + pendingDirs.size() >= MAX_PENDING) {
+            overflowed = true;
+            pendingPaths.clear();
+            pendingDirs.clear();
+        } else if (isDir) {
+            pendingDirs.put(path, depth);
+        } else {
+            pendingPaths.add(path);
+        }
+        long now = SystemClock.uptimeMillis();
+        if (firstPendingAt == 0) firstPendingAt = now;
+        // Waits for a quiet spell, but never holds a steady trickle back for too long
+        handler.removeCallbacks(flush);
+        handler.postAtTime(flush, Math.min(now + QUIET_MS, firstPendingAt + MAX_DELAY_MS));
+    }
+
+    private void flush() {
+        ArrayList<String> paths;
+        HashMap<String, Integer> dirs;
+        boolean rescan;
+        synchronized (this) {
+            paths = new ArrayList<>(pendingPaths);
+            dirs = new HashMap<>(pendingDirs);
+            rescan = overflowed;
+            pendingPaths.clear();
+            pendingDirs.clear();
+            overflowed = false;
+            firstPendingAt = 0;
+        }
+        if (rescan) {
+            Log.d(TAG, "Too many changes at once, rescanning");
+            mainHandler.post(scanner::start);
+            return;
+        }
+        // A deleted or moved-out folder is only reported as a name; the ones being watched are known
+        for (Iterator<String> it = paths.iterator(); it.hasNext(); ) {
+            String path = it.next();
+            DirObserver observer = observers.get(path);
+            if (observer != null && !new File(path).isDirectory()) {
+                dirs.put(path, observer.depth);
+                it.remove();
+            } else if (!AudioFormats.isAudioFile(path)) {
+                it.remove();
+            }
+        }
+        for (HashMap.Entry<String, Integer> entry : dirs.entrySet()) {
+            File dir = new File(entry.getKey());
+            if (dir.isDirectory()) {
+                watchTree(dir, entry.getValue(), paths);
+            } else {
+                unwatchTree(entry.getKey());
+                paths.addAll(db.getPathsUnder(entry.getKey()));
+            }
+        }
+        if (paths.isEmpty()) return;
+        if (paths.size() > MAX_PENDING) {
+            // A big tree moved in; the walk over it is cheaper than that many lookups
+            Log.d(TAG, paths.size() + " new files at once, rescanning");
+            mainHandler.post(scanner::start);
+            return;
+        }
+        Log.d(TAG, "Re-indexing " + paths.size() + " changed paths");
+        scanner.scanPaths(paths);
+    }
+
+    private class DirObserver extends FileObserver {
+        final String dir;
+        final int depth;
+        // A rename comes as MOVED_FROM then MOVED_TO, one right after the other
+        private boolean movedFromPart;
+
+        @SuppressWarnings("deprecation") // The File constructor needs API 29
+        DirObserver(String dir, int depth) {
+            super(dir, EVENTS);
+            this.dir = dir;
+            this.depth = depth;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            event &= FileObserver.ALL_EVENTS;
+            if (event == FileObserver.DELETE_SELF || event == FileObserver.MOVE_SELF) {
+                onPathChanged(dir, true, depth);
+                return;
+            }
+            // A finished download renamed from its .part file is already ingested by DownloadQueue
+            boolean fromPart = movedFromPart;
+            movedFromPart = event == FileObserver.MOVED_FROM && name != null && name.endsWith(".part");
+            if (event == FileObserver.MOVED_TO && fromPart) return;
+            if (name == null || name.startsWith(".")) return;
+            String path = dir + File.separator + name;
+            if (event == FileObserver.CREATE || event == FileObserver.MOVED_TO) {
+                // New files are picked up on CLOSE_WRITE, once they are complete
+                if (new File(path).isDirectory()) {
+                    if (depth < MAX_DEPTH) onPathChanged(path, true, depth + 1);
+                    return;
+                }
+                if (event == FileObserver.CREATE) return;
+            }
+            // Removals can't be told apart from folders here; flush() checks the watched set
+            if (AudioFormats.isAudioFile(name) || event == FileObserver.DELETE
+                    || event == FileObserver.MOVED_FROM) {
+                onPathChanged(path, false, depth);
+            }
+        }
+    }
+}
@@ -6,6 +6,9 @@ import android.database.Cursor;
 import android.graphics.*;
 import android.media.*;
 import android.os.*;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
 import android.view.View;
 import android.view.animation.*;
 import android.widget.*;
@@ -17,16 +20,19 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.palette.graphics.Palette;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 import com.google.android.material.imageview.ShapeableImageView;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
-    private ListView listView;
+    private RecyclerView songListView;
     private ImageButton playPauseButton, nextButton, prevButton;
     private ShapeableImageView albumArt;
     private ImageView blurGlow;
@@ -38,46 +44,131 @@ public class MainActivity extends AppCompatActivity {
     private TextView miniTitle, miniArtist;
     private ImageButton miniPlayPause;
 
-    private ArrayList<File> songList;
-    private int currentSongIndex = -1;
+    private SongAdapter adapter;
+    private LibraryScanner scanner;
+    private MediaScanQueue mediaScanQueue;
+    private ProgressBar scanProgress;
+    private final ExecutorService listLoader = Executors.newSingleThreadExecutor();
+    private SongAdapter.Snapshot loadedSnapshot; // Only touched on listLoader
+    private String loadedQuery = ""; // Only touched on listLoader
+    private final Runnable refreshList = this::refreshSongList;
+    private EditText searchInput;
+    private String searchQuery = "";
+    private CancellationSignal listSignal;
+    private boolean libraryLoaded;
+    // The list as shown, handed to the service as is when a song is tapped; the service builds
+    // its queue from it then, so a refresh only swaps the arrays
+    private long[] listIds = new long[0];
+    private String[] listPaths = new String[0];
+    private int listPosition = -1;
+    private long currentSongId = -1;
     private final int REQUEST_PERMISSION = 1001;
     private Handler handler = new Handler();
     private Animation rotateAnim;
     private SharedPreferences prefs;
 
     private DatabaseHelper db;
+    private ArtStore artStore;
+    private ArtLoader artLoader;
+
+    private MusicService service;
+    private PlaybackState playbackState = PlaybackState.IDLE;
+    private boolean restorePlayer;
+    private int shownSecond = -1;
+    private final StringBuilder timerText = new StringBuilder(8);
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            service = ((MusicService.LocalBinder) binder).getService();
+            // The first snapshot rebuilds the player views for whatever is already playing
+            restorePlayer = true;
+            service.addListener(playbackListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            service = null;
+        }
+    };
 
-    private final BroadcastReceiver updateReceiver = new BroadcastReceiver() {
+    private final MusicService.PlaybackListener playbackListener = new MusicService.PlaybackListener() {
     @Override
-    public void onReceive(Context context, Intent intent) {
-        String status = intent.getStringExtra("status");
-        String path = intent.getStringExtra("song_path");
+    public void onStateChanged(PlaybackState state) {
+        PlaybackState previous = playbackState;
+        playbackState = state;
+        if (restorePlayer) {
+            restorePlayer = false;
+            restorePlayerUI(state);
+            return;
+        }
 
-        if ("paused".equals(status)) {
-            playPauseButton.setImageResource(android.R.drawable.ic_media_play);
-            miniPlayPause.setImageResource(android.R.drawable.ic_media_play);
-            albumArt.clearAnimation();
-        } else if ("resumed".equals(status) || "started".equals(status)) {
+        if (!state.isActive()) {
+            if (previous.isActive()) {
+                miniPlayer.setVisibility(View.GONE);
+                fullPlayerLayout.setVisibility(View.GONE);
+                albumArt.clearAnimation();
+            }
+            return;
+        }
+        if (state.streamUrl != null) {
+            // Reset, so the track it becomes once downloaded gets looked up
+            currentSongId = -1;
+            updateStreamUI(state);
+        } else if (state.songId != currentSongId) {
+            currentSongId = state.songId;
+            updateMetadataUI(state.songId);
+            updateMiniPlayerUI();
+        }
+        // E.g. the service restored the last session after a cold start
+        if (!previous.isActive() && fullPlayerLayout.getVisibility() != View.VISIBLE) {
+            miniPlayer.setVisibility(View.VISIBLE);
+        }
+        if (state.isPlaying() && !previous.isPlaying()) {
             playPauseButton.setImageResource(android.R.drawable.ic_media_pause);
             miniPlayPause.setImageResource(android.R.drawable.ic_media_pause);
             albumArt.startAnimation(rotateAnim);
-            startSeekBarUpdate();
-        } else if ("next".equals(status) && path != null) {
-            currentSongIndex = findIndexByPath(path);
-            updateMetadataUI(path);
-            updateMiniPlayerUI();
-        } else if ("stopped".equals(status)) {
-            miniPlayer.setVisibility(View.GONE);
-            fullPlayerLayout.setVisibility(View.GONE);
+        } else if (!state.isPlaying() && previous.isPlaying()) {
+            playPauseButton.setImageResource(android.R.drawable.ic_media_play);
+            miniPlayPause.setImageResource(android.R.drawable.ic_media_play);
             albumArt.clearAnimation();
         }
+        updateProgress();
+    }
+
+    @Override
+    public void onProgressTick() {
+        updateProgress();
     }
     };
     
-    private final BroadcastReceiver songAddedReceiver = new BroadcastReceiver() {
+    private final LibraryScanner.Listener scanListener = new LibraryScanner.Listener() {
+        @Override
+        public void onLibraryChanged() {
+            // Batches can land every few ms on a first scan; requery at most every 250 ms
+            handler.removeCallbacks(refreshList);
+            handler.postDelayed(refreshList, 250);
+        }
+
+        @Override
+        public void onScanProgress(int processed, int total) {
+            scanProgress.setVisibility(View.VISIBLE);
+            scanProgress.setMax(Math.max(total, 1));
+            scanProgress.setProgress(processed);
+        }
+
+        @Override
+        public void onScanFinished(boolean cancelled) {
+            scanProgress.setVisibility(View.GONE);
+        }
+    };
+
+    private final BroadcastReceiver trackAddedReceiver = new BroadcastReceiver() {
     @Override
     public void onReceive(Context context, Intent intent) {
-        loadSongs(); // Reload songs when a new one is added
+        // The download queue already wrote the rows; the requery diff inserts just them
+        handler.removeCallbacks(refreshList);
+        handler.post(refreshList);
     }
     };
  
@@ -87,7 +178,9 @@ public class MainActivity extends AppCompatActivity {
     Thread.setDefaultUncaughtExceptionHandler(new CrashLogger(this));
     setContentView(R.layout.activity_main);
 
-    db = new DatabaseHelper(this);
+    db = DatabaseHelper.getInstance(this);
+    artStore = ArtStore.getInstance(this);
+    artLoader = ArtLoader.getInstance(this);
     prefs = getSharedPreferences("music_player_prefs", MODE_PRIVATE);
 
     fullPlayerLayout = findViewById(R.id.fullPlayerLayout);
@@ -97,7 +190,9 @@ public class MainActivity extends AppCompatActivity {
     miniArtist = findViewById(R.id.miniArtist);
     miniPlayPause = findViewById(R.id.miniPlayPause);
     miniSeekBar = findViewById(R.id.miniSeekBar);
-    listView = findViewById(R.id.listView);
+    songListView = findViewById(R.id.songList);
+    scanProgress = findViewById(R.id.scanProgress);
+    searchInput = findViewById(R.id.searchInput);
     playPauseButton = findViewById(R.id.playPauseButton);
     nextButton = findViewById(R.id.nextButton);
     prevButton = findViewById(R.id.prevButton);
@@ -110,15 +205,37 @@ public class MainActivity extends AppCompatActivity {
     seekBar = findViewById(R.id.seekBar);
     rotateAnim = AnimationUtils.loadAnimation(this, R.anim.rotate_album);
 
+    adapter = new SongAdapter(this);
+    adapter.setOnSongClickListener(position -> {
+        listPosition = position;
+        playCurrentSong();
+    });
+    songListView.setLayoutManager(new LinearLayoutManager(this));
+    songListView.addItemDecoration(new DividerItemDecoration(this, DividerItemDecoration.VERTICAL));
+    songListView.setAdapter(adapter);
+    searchInput.addTextChangedListener(new TextWatcher() {
+        @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+        @Override public void onTextChanged(CharSequence s, int start, int before, int count) {}
+        @Override public void afterTextChanged(Editable s) {
+            String query = s.toString().trim();
+            if (query.equals(searchQuery)) return;
+            searchQuery = query;
+            // Drop the query still running for the previous keystroke, then wait for typing to pause
+            if (listSignal != null) listSignal.cancel();
+            handler.removeCallbacks(refreshList);
+            handler.postDelayed(refreshList, 150);
+        }
+    });
+    scanner = LibraryScanner.getInstance(this);
+    mediaScanQueue = MediaScanQueue.getInstance(this);
+    // Picks up downloads that were queued or interrupted when the process last died
+    DownloadQueue.getInstance(this);
+
     miniSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
         @Override public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-            if (fromUser) {
-                MediaPlayer player = MusicService.getMediaPlayer();
-                if (player != null) {
-                    int duration = player.getDuration();
-                    int newPos = (duration * progress) / 100;
-                    player.seekTo(newPos);
-                }
+            if (fromUser && service != null) {
+                int newPos = (playbackState.duration * progress) / 100;
+                service.seekTo(newPos);
             }
         }
         @Override public void onStartTrackingTouch(SeekBar seekBar) {}
@@ -133,10 +250,7 @@ public class MainActivity extends AppCompatActivity {
 
     seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
         public void onProgressChanged(SeekBar sb, int progress, boolean fromUser) {
-            if (fromUser) {
-                MediaPlayer player = MusicService.getMediaPlayer();
-                if (player != null) player.seekTo(progress);
-            }
+            if (fromUser && service != null) service.seekTo(progress);
         }
         public void onStartTrackingTouch(SeekBar sb) {}
         public void onStopTrackingTouch(SeekBar sb) {}
@@ -171,13 +285,12 @@ public class MainActivity extends AppCompatActivity {
             findViewById(R.id.mainContentArea).setVisibility(View.VISIBLE);
 
             boolean isFullPlayerVisible = prefs.getBoolean("is_full_player_visible", false);
-            MediaPlayer player = MusicService.getMediaPlayer();
-            boolean isPlaying = player != null && player.isPlaying();
+            boolean hasTrack = playbackState.isActive();
 
             if (isFullPlayerVisible) {
                 fullPlayerLayout.setVisibility(View.VISIBLE);
                 miniPlayer.setVisibility(View.GONE);
-            } else if (isPlaying) {
+            } else if (hasTrack) {
                 fullPlayerLayout.setVisibility(View.GONE);
                 miniPlayer.setVisibility(View.VISIBLE);
             } else {
@@ -185,6 +298,18 @@ public class MainActivity extends AppCompatActivity {
                 miniPlayer.setVisibility(View.GONE);
             }
 
+            return true;
+        } else if (id == R.id.nav_browse) {
+            findViewById(R.id.mainContentArea).setVisibility(View.GONE);
+            fullPlayerLayout.setVisibility(View.GONE);
+            miniPlayer.setVisibility(View.GONE);
+            findViewById(R.id.fragment_container).setVisibility(View.VISIBLE);
+
+            getSupportFragmentManager().beginTransaction()
+                .replace(R.id.fragment_container, new BrowseFragment())
+                .addToBackStack(null)
+                .commit();
+
             return true;
         } else if (id == R.id.nav_download) {
             findViewById(R.id.mainContentArea).setVisibility(View.GONE);
@@ -214,83 +339,98 @@ public class MainActivity extends AppCompatActivity {
         return false;
     });
     }
+
+    // Metadata extraction happens on the scanner's worker threads; the list requeries the
+    // database through scanListener as batches are written. One full pass per process, a
+    // recreated activity just re-attaches to it.
     private void loadSongs() {
-        File musicDir = new File(Environment.getExternalStorageDirectory(), "Music");
-        songList = findSongs(musicDir);
+        libraryLoaded = true;
+        scanner.setListener(scanListener);
+        if (!scanner.hasStarted()) scanner.start();
+        LibraryWatcher.getInstance(this).start(LibraryRoots.get(this));
+    }
 
-        for (File song : songList) {
-            if (!db.isSongCached(song.getAbsolutePath())) {
-                MediaMetadataRetriever retriever = new MediaMetadataRetriever();
-                try {
-                    retriever.setDataSource(song.getAbsolutePath());
-                    String title = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
-                    String artist = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_ARTIST);
-                    String durationStr = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
-                    byte[] art = retriever.getEmbeddedPicture();
-
-                    int duration = (durationStr != null) ? Integer.parseInt(durationStr) : 0;
-
-                    db.insertSong(song.getAbsolutePath(),
-                            title != null ? title : "Unknown Title",
-                            artist != null ? artist : "Unknown Artist",
-                            duration,
-                            art);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    try {
-                        retriever.release();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+    // Runs the query and diffs it against the previous one off the main thread, so only rows
+    // that were added, removed or changed get rebound and the scroll position is kept. With
+    // search text the list shows the FTS matches instead. A newer refresh cancels an older one.
+    private void refreshSongList() {
+        String query = searchQuery;
+        if (listSignal != null) listSignal.cancel();
+        CancellationSignal signal = new CancellationSignal();
+        listSignal = signal;
+        listLoader.execute(() -> {
+            if (signal.isCanceled()) return;
+            long start = SystemClock.uptimeMillis();
+            SongAdapter.Snapshot next;
+            try {
+                next = query.isEmpty()
+                        ? SongAdapter.Snapshot.load(db)
+                        : SongAdapter.Snapshot.search(db, query, signal);
+            } catch (OperationCanceledException e) {
+                return;
             }
-        }
-
-        SongAdapter adapter = new SongAdapter(this, songList);
-        listView.setAdapter(adapter);
-
-        listView.setOnItemClickListener((parent, view, pos, id) -> {
-            currentSongIndex = pos;
-            playCurrentSong();
+            if (!query.isEmpty()) {
+                Log.d("MainActivity", "Search \"" + query + "\": " + next.size() + " rows in "
+                        + (SystemClock.uptimeMillis() - start) + " ms");
+            }
+            SongAdapter.Snapshot previous = loadedSnapshot;
+            // A new query replaces the list wholesale; diffing it against the old one costs more than it saves
+            DiffUtil.DiffResult diff = previous != null && previous.size() > 0 && query.equals(loadedQuery)
+                    ? SongAdapter.diff(previous, next) : null;
+            loadedSnapshot = next;
+            loadedQuery = query;
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    next.close();
+                    return;
+                }
+                listIds = next.ids;
+                listPaths = next.paths;
+                adapter.submit(next, diff);
+            });
         });
     }
 
     private void playCurrentSong() {
-        File song = songList.get(currentSongIndex);
-        updateMetadataUI(song.getAbsolutePath());
-        prefs.edit().putInt("last_index", currentSongIndex).apply();
+        if (listPosition < 0 || listPosition >= listIds.length) return;
+        long songId = listIds[listPosition];
+        currentSongId = songId;
+        updateMetadataUI(songId);
 
-        Intent intent = new Intent(this, MusicService.class);
-        intent.setAction(MusicService.ACTION_START);
-        intent.putExtra("song_path", song.getAbsolutePath());
-        startService(intent);
+        if (service != null) {
+            service.play(listIds, listPaths, listPosition);
+        } else {
+            // Not bound yet; the service picks this up once it is created
+            Intent intent = new Intent(this, MusicService.class);
+            intent.setAction(MusicService.ACTION_START);
+            intent.putExtra("song_id", songId);
+            startService(intent);
+        }
 
         playPauseButton.setImageResource(android.R.drawable.ic_media_pause);
         miniPlayPause.setImageResource(android.R.drawable.ic_media_pause);
         albumArt.startAnimation(rotateAnim);
-        startSeekBarUpdate();
 
         updateMiniPlayerUI();
         miniPlayer.setVisibility(View.VISIBLE);
         showFullPlayer();
     }
 
-    private void updateMetadataUI(String path) {
-        Cursor cursor = db.getSong(path);
+    private void updateMetadataUI(long songId) {
+        Cursor cursor = db.getSongById(songId);
         if (cursor.moveToFirst()) {
             String title = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_TITLE));
             String artist = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ARTIST));
             int duration = cursor.getInt(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_DURATION));
-            byte[] art = cursor.getBlob(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART));
+            String artKey = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART_KEY));
 
             titleText.setText(title);
             artistText.setText(artist);
             seekBar.setMax(duration);
             durationText.setText(millisecondsToTimer(duration));
 
-            if (art != null) {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(art, 0, art.length);
+            Bitmap bitmap = artStore.load(artKey, ArtStore.SIZE_PLAYER);
+            if (bitmap != null) {
                 albumArt.setImageBitmap(bitmap);
                 applyDynamicBlur(bitmap);
             } else {
@@ -300,78 +440,65 @@ public class MainActivity extends AppCompatActivity {
         cursor.close();
     }
 
+    // A download playing before it's in the library: nothing to look up yet, and the duration
+    // only arrives once the player has read enough of it
+    private void updateStreamUI(PlaybackState state) {
+        titleText.setText("Downloading");
+        artistText.setText(state.streamUrl);
+        miniTitle.setText("Downloading");
+        miniArtist.setText(state.streamUrl);
+        seekBar.setMax(state.duration);
+        durationText.setText(millisecondsToTimer(state.duration));
+        albumArt.setImageResource(android.R.drawable.ic_media_play);
+        artLoader.load(null, ArtStore.SIZE_LIST, miniAlbumArt, android.R.drawable.ic_media_play);
+    }
+
     private void updateMiniPlayerUI() {
-        if (songList == null || currentSongIndex < 0 || currentSongIndex >= songList.size()) return;
+        if (currentSongId < 0) return;
 
-        File song = songList.get(currentSongIndex);
-        Cursor cursor = db.getSong(song.getAbsolutePath());
+        Cursor cursor = db.getSongById(currentSongId);
         if (cursor.moveToFirst()) {
             String title = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_TITLE));
             String artist = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ARTIST));
-            byte[] art = cursor.getBlob(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART));
+            String artKey = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART_KEY));
 
             miniTitle.setText(title);
             miniArtist.setText(artist);
-            if (art != null) {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(art, 0, art.length);
-                miniAlbumArt.setImageBitmap(bitmap);
-            } else {
-                miniAlbumArt.setImageResource(android.R.drawable.ic_media_play);
-            }
+            artLoader.load(artKey, ArtStore.SIZE_LIST, miniAlbumArt, android.R.drawable.ic_media_play);
         }
         cursor.close();
     }
 
     private void togglePlayPause() {
-        MediaPlayer player = MusicService.getMediaPlayer();
-        if (player != null) {
-            if (player.isPlaying()) {
-                sendActionToService(MusicService.ACTION_PAUSE);
-            } else {
-                sendActionToService(MusicService.ACTION_RESUME);
-            }
+        if (service == null || !playbackState.isActive()) return;
+        if (playbackState.isPlaying()) {
+            service.pause();
+        } else {
+            service.resume();
         }
     }
 
-    private void sendActionToService(String action) {
-        Intent intent = new Intent(this, MusicService.class);
-        intent.setAction(action);
-        startService(intent);
-    }
-
-    private void startSeekBarUpdate() {
-        handler.postDelayed(new Runnable() {
-            public void run() {
-                MediaPlayer player = MusicService.getMediaPlayer();
-                if (player != null && player.isPlaying()) {
-                    int currentPos = player.getCurrentPosition();
-                    seekBar.setProgress(currentPos);
-                    int duration = player.getDuration();
-                    int progress = (int) ((currentPos / (float) duration) * 100);
-                    miniSeekBar.setProgress(progress);
-                    currentTimeText.setText(millisecondsToTimer(currentPos));
-                }
-                handler.postDelayed(this, 500);
-            }
-        }, 0);
+    // Driven by the service's progress clock and by state changes; no polling of the player
+    private void updateProgress() {
+        int duration = playbackState.duration;
+        if (!playbackState.isActive() || duration <= 0) return;
+        int currentPos = playbackState.positionAt(SystemClock.elapsedRealtime());
+        seekBar.setProgress(currentPos);
+        miniSeekBar.setProgress((int) ((currentPos / (float) duration) * 100));
+        int second = currentPos / 1000;
+        if (second != shownSecond) {
+            shownSecond = second;
+            currentTimeText.setText(millisecondsToTimer(currentPos));
+        }
     }
 
     private String millisecondsToTimer(int ms) {
         int mins = (ms / 1000) / 60;
         int secs = (ms / 1000) % 60;
-        return String.format("%d:%02d", mins, secs);
-    }
-
-    private ArrayList<File> findSongs(File dir) {
-        ArrayList<File> songs = new ArrayList<>();
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isDirectory()) songs.addAll(findSongs(f));
-                else if (f.getName().endsWith(".mp3") || f.getName().endsWith(".m4a")) songs.add(f);
-            }
-        }
-        return songs;
+        timerText.setLength(0);
+        timerText.append(mins).append(':');
+        if (secs < 10) timerText.append('0');
+        return timerText.append(secs).toString();
     }
 
     private void showFullPlayer() {
@@ -380,24 +507,43 @@ public class MainActivity extends AppCompatActivity {
         prefs.edit().putBoolean("is_full_player_visible", true).apply();
     }
 
+    // Songs tapped in a browse list; that list becomes the service's queue
+    void playFromList(long[] ids, String[] paths, int index) {
+        if (service != null) {
+            service.play(ids, paths, index);
+        } else {
+            Intent intent = new Intent(this, MusicService.class);
+            intent.setAction(MusicService.ACTION_START);
+            intent.putExtra("song_id", ids[index]);
+            startService(intent);
+        }
+    }
+
+    // The service steps through whatever list the current song was started from
     private void playNext() {
-        if (songList == null || songList.isEmpty()) return;
-        currentSongIndex = (currentSongIndex + 1) % songList.size();
+        if (service != null) {
+            service.next();
+            return;
+        }
+        if (listIds.length == 0) return;
+        listPosition = (listIndexOf(currentSongId) + 1) % listIds.length;
         playCurrentSong();
     }
 
     private void playPrevious() {
-        if (songList == null || songList.isEmpty()) return;
-        currentSongIndex = (currentSongIndex - 1 + songList.size()) % songList.size();
+        if (service != null) {
+            service.previous();
+            return;
+        }
+        if (listIds.length == 0) return;
+        listPosition = (listIndexOf(currentSongId) - 1 + listIds.length) % listIds.length;
         playCurrentSong();
     }
 
-    private int findIndexByPath(String path) {
-        if (songList == null) return -1;
-        for (int i = 0; i < songList.size(); i++) {
-            if (songList.get(i).getAbsolutePath().equals(path)) {
-                return i;
-            }
+    // Only needed when there is no service to step through its own queue
+    private int listIndexOf(long songId) {
+        for (int i = 0; i < listIds.length; i++) {
+            if (listIds[i] == songId) return i;
         }
         return -1;
     }
@@ -431,6 +577,9 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
     super.onResume();
+    // Before the early return below, onPause() unregisters it either way
+    ContextCompat.registerReceiver(this, trackAddedReceiver,
+            new IntentFilter(DownloadQueue.ACTION_TRACK_ADDED), ContextCompat.RECEIVER_NOT_EXPORTED);
 
     // Ask again if user returned from settings without granting access
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
@@ -440,50 +589,57 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    // Scan new/moved music files in /Music
-    File musicDir = new File(Environment.getExternalStorageDirectory(), "Music");
-    File[] files = musicDir.listFiles();
-    if (files != null) {
-        for (File f : files) {
-            if (f.isFile() && (f.getName().endsWith(".mp3") || f.getName().endsWith(".m4a"))) {
-                scanFile(this, f);
-            }
-        }
-    }
+    // Tell the OS media scanner about new or changed files in the library folders, off the main thread
+    mediaScanQueue.sync(LibraryRoots.get(this));
 
-    // Register receivers
-    registerReceiver(updateReceiver, new IntentFilter("UPDATE_UI"));
-    registerReceiver(songAddedReceiver, new IntentFilter("SONG_ADDED"));
+    if (!libraryLoaded) loadSongs();
+    else scanner.setListener(scanListener);
+    refreshSongList();
+    }
 
-    if (songList == null || songList.isEmpty()) loadSongs();
-    currentSongIndex = prefs.getInt("last_index", -1);
-    boolean wasFullPlayerVisible = prefs.getBoolean("is_full_player_visible", false);
+    @Override
+    protected void onStart() {
+        super.onStart();
+        bindService(new Intent(this, MusicService.class), connection, BIND_AUTO_CREATE);
+    }
 
-    MediaPlayer player = MusicService.getMediaPlayer();
-    String currentPath = MusicService.getCurrentPath();
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (service != null) service.removeListener(playbackListener);
+        unbindService(connection);
+        service = null;
+    }
 
-    if (player != null && player.isPlaying() && currentPath != null
-            && currentSongIndex >= 0 && currentSongIndex < songList.size()) {
+    private void restorePlayerUI(PlaybackState state) {
+    boolean wasFullPlayerVisible = prefs.getBoolean("is_full_player_visible", false);
 
-        updateMetadataUI(currentPath);
-        updateMiniPlayerUI();
+    // Paused counts too, so a restored session shows up ready to resume
+    if (state.isActive()) {
+        currentSongId = state.songId;
+        if (state.streamUrl != null) {
+            updateStreamUI(state);
+        } else {
+            updateMetadataUI(state.songId);
+            updateMiniPlayerUI();
+        }
 
-        int duration = player.getDuration();
+        int duration = state.duration;
         seekBar.setMax(duration);
         durationText.setText(millisecondsToTimer(duration));
 
-        int currentPos = player.getCurrentPosition();
-        seekBar.setProgress(currentPos);
-        currentTimeText.setText(millisecondsToTimer(currentPos));
-
-        int progress = (int) ((currentPos / (float) duration) * 100);
-        miniSeekBar.setProgress(progress);
-
-        playPauseButton.setImageResource(android.R.drawable.ic_media_pause);
-        miniPlayPause.setImageResource(android.R.drawable.ic_media_pause);
+        shownSecond = -1;
+        updateProgress();
 
-        albumArt.startAnimation(rotateAnim);
-        startSeekBarUpdate();
+        if (state.isPlaying()) {
+            playPauseButton.setImageResource(android.R.drawable.ic_media_pause);
+            miniPlayPause.setImageResource(android.R.drawable.ic_media_pause);
+            albumArt.startAnimation(rotateAnim);
+        } else {
+            playPauseButton.setImageResource(android.R.drawable.ic_media_play);
+            miniPlayPause.setImageResource(android.R.drawable.ic_media_play);
+            albumArt.clearAnimation();
+        }
 
         if (wasFullPlayerVisible) {
             fullPlayerLayout.setVisibility(View.VISIBLE);
@@ -498,6 +654,7 @@ public class MainActivity extends AppCompatActivity {
         seekBar.setProgress(0);
         miniSeekBar.setProgress(0);
         currentTimeText.setText("0:00");
+        shownSecond = 0;
         durationText.setText("0:00");
         playPauseButton.setImageResource(android.R.drawable.ic_media_play);
         miniPlayPause.setImageResource(android.R.drawable.ic_media_play);
@@ -508,19 +665,28 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
     super.onPause();
-    unregisterReceiver(updateReceiver);
-    unregisterReceiver(songAddedReceiver);
-    } 
-    
-    private void scanFile(Context context, File file) {
-    MediaScannerConnection.scanFile(context,
-            new String[]{file.getAbsolutePath()},
-            null,
-            (path, uri) -> {
-                // Optional: log or refresh UI
-            });
-            }
-            
+    unregisterReceiver(trackAddedReceiver);
+    // Keep scanning in the background; the listener is re-attached in onResume
+    scanner.setListener(null);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        artLoader.trimMemory(level);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing()) {
+            scanner.cancel();
+            LibraryWatcher.getInstance(this).stop();
+        }
+        handler.removeCallbacks(refreshList);
+        listLoader.shutdown();
+        adapter.close();
+    }
     
     private void showFullStoragePermissionDialog() {
     new AlertDialog.Builder(this)
@@ -0,0 +1,167 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hands audio files to the OS media scanner, but only ones it hasn't seen in their current
+// state. The stamps of every file already scanned are kept in the database, so a resume with
+// nothing new on disk costs one directory listing and no binder calls. New or changed files
+// go out in multi-path batches.
+public class MediaScanQueue {
+
+    private static final String TAG = "MediaScanQueue";
+    private static final int BATCH_SIZE = 64;
+
+    private static MediaScanQueue instance;
+
+    private final Context context;
+    private final DatabaseHelper db;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "MediaScanQueue");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Only touched on executor
+    private Map<String, long[]> scanned;
+    private final HashMap<String, long[]> inFlight = new HashMap<>();
+
+    private final AtomicInteger lastSubmitted = new AtomicInteger();
+    private final AtomicInteger totalSubmitted = new AtomicInteger();
+
+    public static synchronized MediaScanQueue getInstance(Context context) {
+        if (instance == null) instance = new MediaScanQueue(context.getApplicationContext());
+        return instance;
+    }
+
+    private MediaScanQueue(Context context) {
+        this.context = context;
+        db = DatabaseHelper.getInstance(context);
+    }
+
+    // Files submitted by the last sync() pass; zero on a steady-state resume
+    public int getLastSubmitted() {
+        return lastSubmitted.get();
+    }
+
+    // Files submitted since the process started
+    public int getTotalSubmitted() {
+        return totalSubmitted.get();
+    }
+
+    // One pass over the audio files directly inside each of dirs, e.g. the library roots on
+    // resume, submitting the new or changed ones. Files that have gone are forgotten, so they
+    // count as new if they come back.
+    public void sync(List<File> dirs) {
+        executor.execute(() -> {
+            ArrayList<String> pending = new ArrayList<>();
+            HashMap<String, long[]> stamps = new HashMap<>();
+            for (File dir : dirs) collect(dir, pending, stamps);
+            lastSubmitted.set(pending.size());
+            submitAll(pending, stamps);
+        });
+    }
+
+    // Submits just these files, e.g. finished downloads, if they are new or changed. Doesn't
+    // count as a pass.
+    public void scanFiles(Collection<String> paths) {
+        ArrayList<String> files = new ArrayList<>(paths);
+        executor.execute(() -> {
+            loadStamps();
+            ArrayList<String> pending = new ArrayList<>();
+            HashMap<String, long[]> stamps = new HashMap<>();
+            for (String path : files) {
+                File f = new File(path);
+                if (!f.isFile()) continue;
+                long[] stamp = {f.lastModified(), f.length()};
+                if (isCurrent(scanned.get(path), stamp) || isCurrent(inFlight.get(path), stamp)) continue;
+                pending.add(path);
+                stamps.put(path, stamp);
+            }
+            submitAll(pending, stamps);
+        });
+    }
+
+    // Executor only
+    private void collect(File dir, List<String> pending, Map<String, long[]> stamps) {
+        loadStamps();
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        HashSet<String> seen = new HashSet<>();
+        int found = pending.size();
+        for (File f : files) {
+            if (!f.isFile() || !AudioFormats.isAudioFile(f.getName())) continue;
+            String path = f.getAbsolutePath();
+            seen.add(path);
+            long[] stamp = {f.lastModified(), f.length()};
+            if (isCurrent(scanned.get(path), stamp) || isCurrent(inFlight.get(path), stamp)) continue;
+            pending.add(path);
+            stamps.put(path, stamp);
+        }
+
+        ArrayList<String> removed = new ArrayList<>();
+        String prefix = dir.getAbsolutePath() + File.separator;
+        for (String path : scanned.keySet()) {
+            // Direct children only, like the listing above
+            if (path.startsWith(prefix) && path.indexOf(File.separatorChar, prefix.length()) < 0
+                    && !seen.contains(path)) {
+                removed.add(path);
+            }
+        }
+        if (!removed.isEmpty()) {
+            scanned.keySet().removeAll(removed);
+            db.updateMediaScanStamps(new HashMap<>(), removed);
+        }
+        Log.d(TAG, "sync " + dir + ": " + (pending.size() - found) + " of " + seen.size() + " files submitted");
+    }
+
+    private void submitAll(List<String> pending, Map<String, long[]> stamps) {
+        for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+            submit(pending.subList(start, Math.min(start + BATCH_SIZE, pending.size())), stamps);
+        }
+    }
+
+    private void submit(List<String> batch, Map<String, long[]> stamps) {
+        String[] paths = batch.toArray(new String[0]);
+        for (String path : paths) inFlight.put(path, stamps.get(path));
+        totalSubmitted.addAndGet(paths.length);
+        // Only counted on the executor: callbacks can arrive out of order across binder threads,
+        // and the stamps are written once every path of the batch has been added to done
+        int[] remaining = {paths.length};
+        HashMap<String, long[]> done = new HashMap<>();
+        // One call for the batch; the callback fires once per path on a binder thread
+        MediaScannerConnection.scanFile(context, paths, null, (path, uri) -> executor.execute(() -> {
+            long[] stamp = inFlight.remove(path);
+            // A null uri means the scanner failed; leave it to be tried again next pass
+            if (uri != null && stamp != null) {
+                scanned.put(path, stamp);
+                done.put(path, stamp);
+            }
+            if (--remaining[0] == 0) db.updateMediaScanStamps(done, new ArrayList<>());
+        }));
+    }
+
+    private void loadStamps() {
+        if (scanned == null) scanned = db.getMediaScanStamps();
+    }
+
+    private static boolean isCurrent(long[] known, long[] stamp) {
+        return known != null && known[0] == stamp[0] && known[1] == stamp[1];
+    }
+}
@@ -0,0 +1,148 @@
+package com.mario.musicplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// Lists the library with one query against MediaStore.Audio, tags included, instead of
+// walking the disk and opening every file. The OS has already indexed them. Stamps are
+// DATE_MODIFIED and SIZE; from Android 11 the media generation counter also flags rows whose
+// tags changed since the last completed sync.
+class MediaStoreIndexer implements LibraryIndexer {
+
+    private static final String TAG = "MediaStoreIndexer";
+    private static final String PREF_GENERATION = "mediastore_generation";
+    private static final String PREF_VERSION = "mediastore_version";
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final String[] rootPrefixes;
+
+    // Saved once the scan that read them has been written
+    private String version;
+    private long generation;
+
+    MediaStoreIndexer(Context context, List<File> roots) {
+        this.context = context;
+        prefs = context.getSharedPreferences("music_player_prefs", Context.MODE_PRIVATE);
+        rootPrefixes = new String[roots.size()];
+        for (int i = 0; i < rootPrefixes.length; i++) {
+            rootPrefixes[i] = roots.get(i).getAbsolutePath() + File.separator;
+        }
+    }
+
+    @Override
+    public boolean list(List<Entry> out, BooleanSupplier cancelled) {
+        if (rootPrefixes.length == 0) return true;
+        boolean generations = Build.VERSION.SDK_INT >= Build.VERSION_CODES.R;
+        long since = 0;
+        ArrayList<String> projection = new ArrayList<>(Arrays.asList(
+                MediaStore.Audio.Media.DATA,
+                MediaStore.Audio.Media.TITLE,
+                MediaStore.Audio.Media.ARTIST,
+                MediaStore.Audio.Media.ALBUM,
+                MediaStore.Audio.Media.TRACK,
+                MediaStore.Audio.Media.YEAR,
+                MediaStore.Audio.Media.DURATION,
+                MediaStore.Audio.Media.DATE_MODIFIED,
+                MediaStore.Audio.Media.SIZE));
+        Uri uri = MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
+        if (generations) {
+            projection.add(MediaStore.Audio.Media.ALBUM_ARTIST);
+            projection.add(MediaStore.Audio.Media.GENRE);
+            projection.add(MediaStore.Audio.Media.GENERATION_MODIFIED);
+            uri = MediaStore.Audio.Media.getContentUri(MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            version = MediaStore.getVersion(context, MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            generation = MediaStore.getGeneration(context, MediaStore.VOLUME_EXTERNAL_PRIMARY);
+            // A new version means the media database was rebuilt and its counters restarted
+            since = version.equals(prefs.getString(PREF_VERSION, null))
+                    ? prefs.getLong(PREF_GENERATION, 0) : 0;
+        }
+
+        // One LIKE per root; '_' and '%' in folder names are rechecked by underRoot()
+        StringBuilder selection = new StringBuilder(MediaStore.Audio.Media.IS_MUSIC + " != 0 AND (");
+        String[] args = new String[rootPrefixes.length];
+        for (int i = 0; i < rootPrefixes.length; i++) {
+            if (i > 0) selection.append(" OR ");
+            selection.append(MediaStore.Audio.Media.DATA).append(" LIKE ?");
+            args[i] = rootPrefixes[i] + "%";
+        }
+        selection.append(')');
+
+        try (Cursor cursor = context.getContentResolver().query(uri,
+                projection.toArray(new String[0]), selection.toString(), args, null)) {
+            if (cursor == null) {
+                Log.w(TAG, "MediaStore query returned no cursor");
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                if (cancelled.getAsBoolean()) return false;
+                String path = cursor.getString(0);
+                if (path == null || !underRoot(path) || !AudioFormats.isAudioFile(path)) continue;
+                long lastModified = cursor.getLong(7) * 1000;
+                long size = cursor.getLong(8);
+                String albumArtist = generations ? known(cursor.getString(9)) : null;
+                String genre = generations ? cursor.getString(10) : null;
+                boolean changed = generations && cursor.getLong(11) > since;
+                String title = cursor.getString(1);
+                String artist = known(cursor.getString(2));
+                Song song = new Song(path,
+                        title != null ? title : new File(path).getName(),
+                        artist != null ? artist : "Unknown Artist",
+                        known(cursor.getString(3)),
+                        albumArtist,
+                        genre,
+                        cursor.getInt(4) % 1000, // Stored as disc * 1000 + track
+                        cursor.getInt(5),
+                        cursor.getInt(6),
+                        null,
+                        0,
+                        size);
+                out.add(new Entry(path, lastModified, size, song, changed));
+            }
+            Log.d(TAG, out.size() + " tracks from MediaStore");
+            return true;
+        } catch (RuntimeException e) {
+            // E.g. the read permission was revoked
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean underRoot(String path) {
+        for (String prefix : rootPrefixes) {
+            if (path.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    // MediaStore fills missing tags with "<unknown>"
+    private static String known(String value) {
+        return value == null || MediaStore.UNKNOWN_STRING.equals(value) ? null : value;
+    }
+
+    // The query returns every row or fails as a whole
+    @Override
+    public boolean isComplete() {
+        return true;
+    }
+
+    @Override
+    public void onScanCompleted() {
+        if (version == null) return;
+        prefs.edit()
+                .putString(PREF_VERSION, version)
+                .putLong(PREF_GENERATION, generation)
+                .apply();
+    }
+}
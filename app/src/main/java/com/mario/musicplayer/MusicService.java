@@ -2,12 +2,11 @@ package com.mario.musicplayer;
 
 import android.app.*;
 import android.content.*;
-import android.media.*;
 import android.os.*;
+import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
-import java.io.*;
 import java.util.*;
 
 import android.database.Cursor;
@@ -20,146 +19,347 @@ public class MusicService extends Service {
     public static final String ACTION_STOP = "STOP";
     public static final String ACTION_NEXT = "NEXT";
     public static final String ACTION_PREV = "PREV";
+    // Plays the download of the "url" extra while it is still running
+    public static final String ACTION_PLAY_DOWNLOAD = "PLAY_DOWNLOAD";
 
-    private MediaPlayer mediaPlayer;
-    private static MusicService instance;
+    private static final String TAG = "MusicService";
+    private static final long CHECKPOINT_INTERVAL_MS = 10000;
+
+    private PlaybackEngine engine;
     private String currentTitle = "Music Playing";
     private String currentArtist = "Enjoy your music";
-    private ArrayList<File> songList = new ArrayList<>();
-    public int currentIndex = -1;
-    private SharedPreferences prefs;
+    private int currentDuration;
+    private PlayQueue queue = new PlayQueue();
+    // The queue play(ids, paths, index) last built and the client array it came from; a tap
+    // in the same list finds them still in place and only moves the current track
+    private PlayQueue adoptedQueue;
+    private long[] adoptedIds;
 
     private DatabaseHelper db;
-
-    public static MediaPlayer getMediaPlayer() {
-        return instance != null ? instance.mediaPlayer : null;
+    private QueueStore store;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable checkpoint = new Runnable() {
+        @Override
+        public void run() {
+            // Bounds what a process death mid-track can lose
+            store.setPosition(state.songId, state.positionAt(SystemClock.elapsedRealtime()));
+            handler.postDelayed(this, CHECKPOINT_INTERVAL_MS);
+        }
+    };
+
+    private final IBinder binder = new LocalBinder();
+    private final ArrayList<PlaybackListener> listeners = new ArrayList<>();
+    private PlaybackState state = PlaybackState.IDLE;
+    private long firstAudioRequestedAt;
+    private int firstAudioCookie;
+    private final ProgressClock clock = new ProgressClock(this::dispatchTick);
+    // The download being played while it runs, until it becomes a library track
+    private String streamingUrl;
+    private boolean streaming;
+    private final DownloadQueue.Listener streamListener = this::onDownloadChanged;
+
+    // Called on the main thread
+    public interface PlaybackListener {
+        // A fresh snapshot on every state change, and once with the current one when registered
+        void onStateChanged(PlaybackState state);
+
+        // Once per second of playback; render the position from the last snapshot
+        void onProgressTick();
     }
 
-    public static String getCurrentPath() {
-        return (instance != null &&
-                instance.mediaPlayer != null &&
-                instance.currentIndex >= 0 &&
-                instance.currentIndex < instance.songList.size())
-                ? instance.songList.get(instance.currentIndex).getAbsolutePath()
-                : null;
+    public class LocalBinder extends Binder {
+        public MusicService getService() {
+            return MusicService.this;
+        }
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
-        instance = this;
-        db = new DatabaseHelper(this);
-        prefs = getSharedPreferences("music_player_prefs", MODE_PRIVATE);
-        loadSongs();
+        Trace.beginSection("MusicService.onCreate");
+        long createdAt = SystemClock.uptimeMillis();
+        db = DatabaseHelper.getInstance(this);
+        store = new QueueStore(db);
+        engine = new PlaybackEngine(new PlaybackEngine.Callback() {
+            @Override
+            public void onStarted() {
+                endFirstAudioTrace();
+                startForeground(1, createNotification());
+                publish(PlaybackState.PLAYING);
+            }
+
+            @Override
+            public void onAdvanced() {
+                // Already playing, just catch the queue and the UI up
+                queue.setCurrent(queue.getCurrent() + 1);
+                long songId = queue.getCurrentId();
+                extractMetadata(songId);
+                startForeground(1, createNotification());
+                publish(PlaybackState.PLAYING);
+                engine.setNext(getFollowingPath());
+            }
+
+            @Override
+            public void onCompletion() {
+                int next = queue.getCurrent() + 1;
+                if (next >= queue.size()) {
+                    stop();
+                } else {
+                    playSongAt(next);
+                }
+            }
+
+            @Override
+            public void onError() {
+                publish(PlaybackState.STOPPED);
+                stopForeground(true);
+            }
+        });
+        // Nothing here touches the library; the queue arrives with the first command or is
+        // restored off the main thread
+        restoreQueue(createdAt);
+        Trace.endSection();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent == null || intent.getAction() == null) {
-            stopSelf();  // Or just log and ignore
+        if (intent == null) {
+            stopSelf();  // Restarted after being killed, nothing to resume
             return START_NOT_STICKY;
         }
 
+        // No action: a bound client started playback and the service keeps itself alive
         String action = intent.getAction();
+        if (action == null) return START_STICKY;
 
         if (ACTION_START.equals(action)) {
-            String path = intent.getStringExtra("song_path");
-            if (path != null) {
-                currentIndex = findIndexByPath(path);
-                prefs.edit().putInt("last_index", currentIndex).apply();
-                extractMetadata(path);
-                startMediaPlayer(path);
-                sendBroadcastUpdate("started", path);
-            }
-
+            play(intent.getLongExtra("song_id", -1));
         } else if (ACTION_PAUSE.equals(action)) {
-            if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-                mediaPlayer.pause();
-                stopForeground(true);
-                sendBroadcastUpdate("paused", null);
-            }
-
+            pause();
         } else if (ACTION_RESUME.equals(action)) {
-            if (mediaPlayer != null && !mediaPlayer.isPlaying()) {
-                mediaPlayer.start();
-                startForeground(1, createNotification());
-                sendBroadcastUpdate("resumed", null);
-            }
-
+            resume();
         } else if (ACTION_STOP.equals(action)) {
-            stopForeground(true);
-            stopSelf();
-
+            stop();
         } else if (ACTION_NEXT.equals(action)) {
-            currentIndex = (currentIndex + 1) % songList.size();
-            playSongAt(currentIndex);
-
+            next();
         } else if (ACTION_PREV.equals(action)) {
-            currentIndex = (currentIndex - 1 + songList.size()) % songList.size();
-            playSongAt(currentIndex);
+            previous();
+        } else if (ACTION_PLAY_DOWNLOAD.equals(action)) {
+            playDownload(intent.getStringExtra("url"));
         }
 
         return START_STICKY;
     }
 
-    private void startMediaPlayer(String path) {
-        try {
-            if (mediaPlayer != null) mediaPlayer.reset();
-            else mediaPlayer = new MediaPlayer();
-
-            mediaPlayer.setDataSource(path);
-            mediaPlayer.prepare();
-            mediaPlayer.start();
-
-            startForeground(1, createNotification());
-
-            mediaPlayer.setOnCompletionListener(mp -> {
-                currentIndex++;
-                if (currentIndex >= songList.size()) {
-                    sendBroadcastUpdate("stopped", null);
-                    stopForeground(true);
-                    stopSelf();
-                } else {
-                    prefs.edit().putInt("last_index", currentIndex).apply();
-                    String nextPath = songList.get(currentIndex).getAbsolutePath();
-                    extractMetadata(nextPath);
-                    startMediaPlayer(nextPath);
-                    sendBroadcastUpdate("next", nextPath);
-                }
-            });
+    public PlaybackState getState() {
+        return state;
+    }
+
+    public void addListener(PlaybackListener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+        listener.onStateChanged(state);
+        updateClock();
+    }
+
+    // Clients remove themselves when they go to the background, which also stops the clock
+    public void removeListener(PlaybackListener listener) {
+        listeners.remove(listener);
+        updateClock();
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Plays ids[index] and adopts the client's list as the queue. The track is handed to the
+    // engine before the queue is indexed, so time to first audio doesn't grow with the list,
+    // and the same arrays coming back keep the queue already built from them. The arrays are
+    // kept, callers must not modify them afterwards.
+    public void play(long[] ids, String[] paths, int index) {
+        if (index < 0 || index >= ids.length) return;
+        Trace.beginSection("MusicService.play");
+        beginFirstAudioTrace();
+        extractMetadata(ids[index]);
+        startMediaPlayer(paths[index]);
+        if (queue != adoptedQueue || ids != adoptedIds) {
+            queue = new PlayQueue(ids, paths);
+            adoptedQueue = queue;
+            adoptedIds = ids;
+            store.setQueue(ids);
         }
+        queue.setCurrentId(ids[index]);
+        engine.setNext(getFollowingPath());
+        publish(PlaybackState.BUFFERING, 0);
+        Trace.endSection();
+    }
+
+    // For callers without a list (the ACTION_START intent): an unknown id is resolved with a
+    // single lookup and played at once, and the library order is loaded in the background
+    public void play(long songId) {
+        if (queue.setCurrentId(songId)) {
+            beginFirstAudioTrace();
+            playSongAt(queue.getCurrent());
+            return;
+        }
+        String path = db.getSongPath(songId);
+        if (path == null) return;
+        beginFirstAudioTrace();
+        extractMetadata(songId);
+        startMediaPlayer(path);
+        queue = new PlayQueue(new long[]{songId}, new String[]{path});
+        queue.setCurrent(0);
+        publish(PlaybackState.BUFFERING, 0);
+        loadSongs();
+    }
+
+    // Starts a running download from its first bytes instead of waiting for the whole file.
+    // The transfer carries on writing the same file, which becomes the library track when it
+    // completes; the queue then switches to that track's id. A download that has already
+    // finished is just played from the library.
+    public void playDownload(String url) {
+        DownloadQueue downloads = DownloadQueue.getInstance(this);
+        PartialDownload partial = url != null ? downloads.getPartial(url) : null;
+        if (partial == null) {
+            DownloadJob job = url != null ? downloads.getJob(url) : null;
+            long songId = job != null && job.path != null ? db.getSongId(job.path) : -1;
+            if (songId >= 0) play(songId);
+            return;
+        }
+        beginFirstAudioTrace();
+        streaming = true;
+        currentTitle = "Downloading";
+        currentArtist = url;
+        currentDuration = 0;
+        startService(new Intent(this, MusicService.class));
+        engine.play(new GrowingFileDataSource(partial));
+        queue = new PlayQueue(new long[]{-1}, new String[]{partial.getFile().getAbsolutePath()});
+        queue.setCurrent(0);
+        publish(PlaybackState.BUFFERING, 0);
+        if (streamingUrl == null) downloads.addListener(streamListener);
+        streamingUrl = url;
+    }
+
+    private void onDownloadChanged(DownloadJob job) {
+        if (!job.url.equals(streamingUrl) || job.isActive()) return;
+        DownloadQueue.getInstance(this).removeListener(streamListener);
+        streamingUrl = null;
+        // Still the track being played?
+        if (!streaming || job.path == null) return;
+        long songId = db.getSongId(job.path);
+        if (songId < 0) return;
+        streaming = false;
+        queue = new PlayQueue(new long[]{songId}, new String[]{job.path});
+        queue.setCurrent(0);
+        store.setQueue(queue.getIds());
+        extractMetadata(songId);
+        if (!state.isActive()) return;
+        if (state.isPlaying()) startForeground(1, createNotification());
+        publish(state.status);
+    }
+
+    public void pause() {
+        if (!state.isPlaying()) return;
+        engine.pause();
+        stopForeground(true);
+        publish(PlaybackState.PAUSED);
+        store.flush();
+    }
+
+    public void resume() {
+        if (!state.isActive() || state.isPlaying()) return;
+        engine.resume();
+        startForeground(1, createNotification());
+        publish(engine.isReady() ? PlaybackState.PLAYING : PlaybackState.BUFFERING);
+    }
+
+    public void next() {
+        // A download being played has nothing queued around it, and no file to restart from
+        if (streaming) return;
+        playSongAt(queue.nextPosition());
+    }
+
+    public void previous() {
+        if (streaming) {
+            seekTo(0);
+            return;
+        }
+        playSongAt(queue.previousPosition());
+    }
+
+    public void seekTo(int position) {
+        if (!engine.isReady()) return;
+        engine.seekTo(position);
+        publish(state.status, position);
+    }
+
+    public void stop() {
+        engine.pause();
+        store.flush();
+        publish(PlaybackState.STOPPED);
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // Returns straight away; the engine prepares on its own thread and calls onStarted()
+    private void startMediaPlayer(String path) {
+        streaming = false;
+        // Started as well as bound, so playback outlives the activity that asked for it
+        startService(new Intent(this, MusicService.class));
+        engine.play(path);
+    }
+
+    // What plays after the current track when it ends on its own (no wrap-around)
+    @Nullable
+    private String getFollowingPath() {
+        int next = queue.getCurrent() + 1;
+        return next > 0 && next < queue.size() ? queue.getPath(next) : null;
     }
 
     private void playSongAt(int index) {
-        if (index < 0 || index >= songList.size()) return;
-        File file = songList.get(index);
-        currentIndex = index;
-        prefs.edit().putInt("last_index", index).apply();
-        extractMetadata(file.getAbsolutePath());
-        startMediaPlayer(file.getAbsolutePath());
-        sendBroadcastUpdate("next", file.getAbsolutePath());
+        if (index < 0 || index >= queue.size()) return;
+        queue.setCurrent(index);
+        long songId = queue.getCurrentId();
+        extractMetadata(songId);
+        startMediaPlayer(queue.getCurrentPath());
+        engine.setNext(getFollowingPath());
+        publish(PlaybackState.BUFFERING, 0);
     }
 
-    private void extractMetadata(String path) {
-        Cursor cursor = db.getSong(path);
+    private void extractMetadata(long songId) {
+        Cursor cursor = db.getSongById(songId);
         if (cursor.moveToFirst()) {
             currentTitle = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_TITLE));
             currentArtist = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ARTIST));
+            currentDuration = cursor.getInt(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_DURATION));
         } else {
             currentTitle = "Unknown Title";
             currentArtist = "Unknown Artist";
+            currentDuration = 0;
         }
         cursor.close();
     }
 
-    private void sendBroadcastUpdate(String status, @Nullable String path) {
-        Intent intent = new Intent("UPDATE_UI");
-        intent.putExtra("status", status);
-        if (path != null) intent.putExtra("song_path", path);
-        sendBroadcast(intent);
+    private void publish(int status) {
+        publish(status, engine.getPosition());
+    }
+
+    private void publish(int status, int position) {
+        long songId = status == PlaybackState.STOPPED ? -1 : queue.getCurrentId();
+        // While buffering the engine may still hold the previous track
+        int duration = status != PlaybackState.BUFFERING && engine.isReady()
+                ? engine.getDuration() : currentDuration;
+        String streamUrl = streaming && status != PlaybackState.STOPPED ? streamingUrl : null;
+        state = new PlaybackState(status, songId, position, duration, streamUrl);
+        for (PlaybackListener listener : new ArrayList<>(listeners)) listener.onStateChanged(state);
+        updateClock();
+        store.setPosition(songId, position);
+        handler.removeCallbacks(checkpoint);
+        if (status == PlaybackState.PLAYING) handler.postDelayed(checkpoint, CHECKPOINT_INTERVAL_MS);
+    }
+
+    private void updateClock() {
+        if (state.status == PlaybackState.PLAYING && !listeners.isEmpty()) clock.start(state);
+        else clock.stop();
+    }
+
+    private void dispatchTick() {
+        for (PlaybackListener listener : new ArrayList<>(listeners)) listener.onProgressTick();
     }
 
     private Notification createNotification() {
@@ -188,45 +388,83 @@ public class MusicService extends Service {
                 .build();
     }
 
+    // Same order as the song list, straight from the index and off the main thread
     private void loadSongs() {
-        File musicDir = new File(Environment.getExternalStorageDirectory(), "Music");
-        findSongs(musicDir);
+        PlayQueue requestedFor = queue;
+        store.loadLibrary(library -> {
+            // A client handed over its own list in the meantime
+            if (queue != requestedFor) return;
+            library.setCurrentId(queue.getCurrentId());
+            queue = library;
+            store.setQueue(queue.getIds());
+            // The following track may have changed; a still-valid prepared player is kept
+            engine.setNext(getFollowingPath());
+        });
     }
 
-    private void findSongs(File dir) {
-        File[] files = dir.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                if (file.isDirectory()) findSongs(file);
-                else if (file.getName().endsWith(".mp3") || file.getName().endsWith(".m4a")) {
-                    songList.add(file);
-                }
-            }
+    private void beginFirstAudioTrace() {
+        if (firstAudioRequestedAt > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            // Superseded before it made a sound
+            Trace.endAsyncSection("time-to-first-audio", firstAudioCookie);
+        }
+        firstAudioRequestedAt = SystemClock.uptimeMillis();
+        firstAudioCookie++;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection("time-to-first-audio", firstAudioCookie);
         }
     }
 
-    private int findIndexByPath(String path) {
-        for (int i = 0; i < songList.size(); i++) {
-            if (songList.get(i).getAbsolutePath().equals(path)) {
-                return i;
-            }
+    private void endFirstAudioTrace() {
+        if (firstAudioRequestedAt == 0) return;
+        Log.d(TAG, "Time to first audio: " + (SystemClock.uptimeMillis() - firstAudioRequestedAt)
+                + " ms (queue of " + queue.size() + ")");
+        firstAudioRequestedAt = 0;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection("time-to-first-audio", firstAudioCookie);
         }
-        return -1;
+    }
+
+    // Cold start: the saved queue, paused on the checkpointed track at the saved offset
+    private void restoreQueue(long createdAt) {
+        store.restore((restored, songId, position) -> {
+            // A command that came in meanwhile already built a queue, and wins
+            if (!queue.isEmpty()) return;
+            queue = restored;
+            if (!queue.setCurrentId(songId)) return;
+            extractMetadata(songId);
+            engine.play(queue.getCurrentPath(), position, false);
+            engine.setNext(getFollowingPath());
+            publish(PlaybackState.PAUSED, position);
+
+            long elapsed = SystemClock.uptimeMillis() - createdAt;
+            String message = "Restored track " + songId + " at " + position + " ms, "
+                    + elapsed + " ms after start (budget " + QueueStore.RESTORE_BUDGET_MS + " ms)";
+            if (elapsed > QueueStore.RESTORE_BUDGET_MS) Log.w(TAG, message);
+            else Log.d(TAG, message);
+        });
+    }
+
+    @Override
+    public void onTaskRemoved(Intent rootIntent) {
+        super.onTaskRemoved(rootIntent);
+        store.flush();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        sendBroadcastUpdate("stopped", null);
-        if (mediaPlayer != null) {
-            mediaPlayer.release();
-            mediaPlayer = null;
-        }
+        if (state.status != PlaybackState.STOPPED) publish(PlaybackState.STOPPED, 0);
+        listeners.clear();
+        if (streamingUrl != null) DownloadQueue.getInstance(this).removeListener(streamListener);
+        clock.stop();
+        handler.removeCallbacks(checkpoint);
+        store.release();
+        engine.release();
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 }
\ No newline at end of file
@@ -0,0 +1,61 @@
+package com.mario.musicplayer;
+
+import java.io.File;
+
+// A transfer that is still running, as seen by a player reading it: where its bytes are going
+// and whether more are coming. The download thread reports in, GrowingFileDataSource waits on
+// it. Bytes on disk are read straight from the file, so this only has to say when to stop.
+final class PartialDownload {
+
+    private File file; // The .part file, then the finished file once renamed
+    private long downloaded;
+    private long total = -1;
+    private boolean finished;
+    private boolean failed;
+
+    PartialDownload(File part) {
+        this.file = part;
+    }
+
+    synchronized File getFile() {
+        return file;
+    }
+
+    // -1 while the server hasn't said
+    synchronized long getTotal() {
+        return total;
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    synchronized boolean isFailed() {
+        return failed;
+    }
+
+    synchronized void onProgress(long downloaded, long total) {
+        // The Downloader started the file over, so what a reader already has may not match
+        if (downloaded < this.downloaded) failed = true;
+        this.downloaded = downloaded;
+        this.total = total;
+        notifyAll();
+    }
+
+    synchronized void onFinished(File file) {
+        this.file = file;
+        total = file.length();
+        finished = true;
+        notifyAll();
+    }
+
+    synchronized void onFailed() {
+        failed = true;
+        notifyAll();
+    }
+
+    // Woken early by any progress; readers recheck the file either way
+    synchronized void await(long timeoutMs) throws InterruptedException {
+        if (!finished && !failed) wait(timeoutMs);
+    }
+}
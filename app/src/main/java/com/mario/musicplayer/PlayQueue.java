@@ -0,0 +1,227 @@
+package com.mario.musicplayer;
+
+import android.database.Cursor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Ordered play queue keyed by the songs table _id. Entries sit in plain arrays, each with a
+// sort key spaced GAP apart; the id map points at keys rather than positions, so inserting,
+// removing or moving an entry only shifts the arrays and takes a key from the gap around it.
+// A position is found again by binary search over the keys. The keys are only respaced once a
+// gap runs out. Not thread-safe, each owner confines it to one thread.
+public class PlayQueue {
+
+    private static final long GAP = 1L << 20;
+    private static final long NO_KEY = Long.MIN_VALUE;
+
+    private long[] ids = new long[0];
+    private String[] paths = new String[0];
+    private long[] keys = new long[0]; // Ascending
+    private int size;
+    private final HashMap<Long, Long> keyById = new HashMap<>();
+    private final HashMap<String, Long> idByPath = new HashMap<>();
+    private int current = -1;
+
+    public PlayQueue() {
+    }
+
+    public PlayQueue(long[] ids, String[] paths) {
+        setTracks(ids, paths);
+    }
+
+    // The whole library in list order
+    public static PlayQueue fromLibrary(DatabaseHelper db) {
+        Cursor cursor = db.getSongList();
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        int idColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ID);
+        int pathColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_PATH);
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            paths[i] = cursor.getString(pathColumn);
+        }
+        cursor.close();
+        return new PlayQueue(ids, paths);
+    }
+
+    public void setTracks(long[] newIds, String[] newPaths) {
+        long currentId = getCurrentId();
+        ids = new long[newIds.length];
+        paths = new String[newIds.length];
+        keys = new long[newIds.length];
+        size = 0;
+        keyById.clear();
+        idByPath.clear();
+        for (int i = 0; i < newIds.length; i++) {
+            if (keyById.containsKey(newIds[i])) continue;
+            ids[size] = newIds[i];
+            paths[size] = newPaths[i];
+            keys[size] = size * GAP;
+            keyById.put(newIds[i], keys[size]);
+            idByPath.put(newPaths[i], newIds[i]);
+            size++;
+        }
+        current = indexOfId(currentId);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getId(int position) {
+        return ids[check(position)];
+    }
+
+    public String getPath(int position) {
+        return paths[check(position)];
+    }
+
+    public String getPathById(long id) {
+        int position = indexOfId(id);
+        return position >= 0 ? paths[position] : null;
+    }
+
+    public int indexOfId(long id) {
+        Long key = keyById.get(id);
+        if (key == null) return -1;
+        int position = Arrays.binarySearch(keys, 0, size, key);
+        return position >= 0 ? position : -1;
+    }
+
+    public int indexOfPath(String path) {
+        Long id = idByPath.get(path);
+        return id != null ? indexOfId(id) : -1;
+    }
+
+    public long[] getIds() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    public void insert(int position, long id, String path) {
+        if (keyById.containsKey(id)) return;
+        if (position < 0 || position > size) throw new IndexOutOfBoundsException("Position " + position);
+        put(position, id, path);
+        if (current >= position) current++;
+    }
+
+    public void add(long id, String path) {
+        insert(size, id, path);
+    }
+
+    public void remove(int position) {
+        check(position);
+        long id = ids[position];
+        idByPath.remove(paths[position]);
+        keyById.remove(id);
+        take(position);
+        if (current > position) current--;
+        else if (current == position) current = Math.min(position, size - 1);
+    }
+
+    public void move(int from, int to) {
+        if (from == to) return;
+        check(from);
+        check(to);
+        long id = ids[from];
+        String path = paths[from];
+        take(from);
+        put(to, id, path);
+        if (current == from) current = to;
+        else if (from < current && current <= to) current--;
+        else if (to <= current && current < from) current++;
+    }
+
+    public int getCurrent() {
+        return current;
+    }
+
+    public long getCurrentId() {
+        return current >= 0 && current < size ? ids[current] : -1;
+    }
+
+    public String getCurrentPath() {
+        return current >= 0 && current < size ? paths[current] : null;
+    }
+
+    public void setCurrent(int position) {
+        current = position >= 0 && position < size ? position : -1;
+    }
+
+    public boolean setCurrentId(long id) {
+        current = indexOfId(id);
+        return current >= 0;
+    }
+
+    // Wraps around at both ends, like the prev/next buttons always have
+    public int nextPosition() {
+        return size == 0 ? -1 : (current + 1) % size;
+    }
+
+    public int previousPosition() {
+        return size == 0 ? -1 : (current - 1 + size) % size;
+    }
+
+    private int check(int position) {
+        if (position < 0 || position >= size) throw new IndexOutOfBoundsException("Position " + position);
+        return position;
+    }
+
+    // Opens a slot at position and gives it a key between its neighbours'
+    private void put(int position, long id, String path) {
+        long key = keyBetween(position);
+        if (key == NO_KEY) {
+            respace();
+            key = keyBetween(position);
+        }
+        if (size == ids.length) {
+            int capacity = Math.max(16, size * 3 / 2);
+            ids = Arrays.copyOf(ids, capacity);
+            paths = Arrays.copyOf(paths, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        System.arraycopy(ids, position, ids, position + 1, size - position);
+        System.arraycopy(paths, position, paths, position + 1, size - position);
+        System.arraycopy(keys, position, keys, position + 1, size - position);
+        ids[position] = id;
+        paths[position] = path;
+        keys[position] = key;
+        size++;
+        keyById.put(id, key);
+        idByPath.put(path, id);
+    }
+
+    // Halfway between the keys either side of position, or NO_KEY if they are adjacent. The
+    // ends just step a GAP further out.
+    private long keyBetween(int position) {
+        if (size == 0) return 0;
+        if (position == 0) return keys[0] - GAP;
+        if (position == size) return keys[size - 1] + GAP;
+        long before = keys[position - 1];
+        long after = keys[position];
+        return after - before >= 2 ? before + (after - before) / 2 : NO_KEY;
+    }
+
+    // Closes the slot at position; its map entries are the caller's
+    private void take(int position) {
+        int tail = size - position - 1;
+        System.arraycopy(ids, position + 1, ids, position, tail);
+        System.arraycopy(paths, position + 1, paths, position, tail);
+        System.arraycopy(keys, position + 1, keys, position, tail);
+        size--;
+        paths[size] = null;
+    }
+
+    // Every gap back to full width, once repeated inserts at one spot have used one up
+    private void respace() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = i * GAP;
+            keyById.put(ids[i], keys[i]);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package com.mario.musicplayer;
+
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Owns the MediaPlayer for the current track plus a second one for the track after it. The
+// second player is prepared in the background and chained with setNextMediaPlayer(), so the
+// hand-over at the end of a track happens inside the media framework with no gap.
+//
+// All player work happens on the engine's own HandlerThread and every prepare is async, so no
+// caller ever blocks on storage. A play() that arrives while an older one is still queued
+// replaces it: hammering "next" only prepares the last target.
+public class PlaybackEngine {
+
+    private static final String TAG = "PlaybackEngine";
+
+    private static final int MSG_PLAY = 1;
+    private static final int MSG_SET_NEXT = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_RESUME = 4;
+    private static final int MSG_SEEK = 5;
+    private static final int MSG_SAMPLE = 6;
+
+    // How often a playing track's position is read again, in case it drifts from the clock
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    // Delivered on the main thread
+    public interface Callback {
+        // The track passed to play() is prepared and playing
+        void onStarted();
+
+        // The chained player took over; the queue should move on by one
+        void onAdvanced();
+
+        // The current track ended and nothing was ready to take over
+        void onCompletion();
+
+        // The track passed to play() could not be played
+        void onError();
+    }
+
+    private static class Command {
+        final String path;
+        final MediaDataSource source; // Played instead of path when set
+        final int position;
+        final boolean playWhenReady;
+        final long issuedAt = SystemClock.uptimeMillis();
+
+        Command(String path, int position) {
+            this(path, null, position, true);
+        }
+
+        Command(String path, MediaDataSource source, int position, boolean playWhenReady) {
+            this.path = path;
+            this.source = source;
+            this.position = position;
+            this.playWhenReady = playWhenReady;
+        }
+    }
+
+    // The current track as the engine thread last saw it. MediaPlayer isn't thread-safe, so
+    // other threads read this instead of the player; while playing, the position moves on with
+    // the clock from sampledAt.
+    private static class Progress {
+        final boolean playing;
+        final int position;
+        final int duration;
+        final long sampledAt = SystemClock.elapsedRealtime();
+
+        Progress(boolean playing, int position, int duration) {
+            this.playing = playing;
+            this.position = position;
+            this.duration = duration;
+        }
+    }
+
+    private final Callback callback;
+    private final Supplier<MediaPlayer> players;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final AtomicInteger superseded = new AtomicInteger();
+
+    // Engine thread only
+    private MediaPlayer current;
+    private boolean currentPrepared;
+    private boolean playWhenReady;
+    private MediaPlayer next;
+    private String nextPath;
+    private boolean nextPrepared;
+    private boolean nextPending;
+    private String pendingNextPath;
+
+    // Inter-track gap measurement: end of one track to first audio of the next
+    private long completedAt;
+    private boolean nextStartedEarly;
+
+    // Read from other threads; progress is null until the current track is prepared
+    private volatile Progress progress;
+    private volatile long lastGapMs = -1;
+
+    public PlaybackEngine(Callback callback) {
+        this(callback, MediaPlayer::new);
+    }
+
+    // Tests hand in fake players
+    PlaybackEngine(Callback callback, Supplier<MediaPlayer> players) {
+        this.callback = callback;
+        this.players = players;
+        thread = new HandlerThread("PlaybackEngine", Process.THREAD_PRIORITY_AUDIO);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this::handleMessage);
+    }
+
+    // False while switching tracks, until the new one is prepared
+    public boolean isReady() {
+        return progress != null;
+    }
+
+    public boolean isPlaying() {
+        Progress p = progress;
+        return p != null && p.playing;
+    }
+
+    public int getPosition() {
+        Progress p = progress;
+        if (p == null) return 0;
+        if (!p.playing) return p.position;
+        long position = p.position + SystemClock.elapsedRealtime() - p.sampledAt;
+        return (int) (p.duration > 0 ? Math.min(position, p.duration) : position);
+    }
+
+    public int getDuration() {
+        Progress p = progress;
+        return p != null ? p.duration : 0;
+    }
+
+    public long getLastGapMs() {
+        return lastGapMs;
+    }
+
+    public void play(String path) {
+        play(path, 0, true);
+    }
+
+    // With playWhenReady false the track is only prepared and positioned, ready for resume()
+    public void play(String path, int position, boolean playWhenReady) {
+        if (handler.hasMessages(MSG_PLAY)) superseded.incrementAndGet();
+        handler.removeMessages(MSG_PLAY);
+        // The following track is relative to the new one, callers send it again
+        handler.removeMessages(MSG_SET_NEXT);
+        send(MSG_PLAY, new Command(path, null, position, playWhenReady));
+    }
+
+    // A track that isn't a plain file, e.g. one still downloading. The player closes source
+    // when it is done with it.
+    public void play(MediaDataSource source) {
+        if (handler.hasMessages(MSG_PLAY)) superseded.incrementAndGet();
+        handler.removeMessages(MSG_PLAY);
+        handler.removeMessages(MSG_SET_NEXT);
+        send(MSG_PLAY, new Command(null, source, 0, true));
+    }
+
+    // Call whenever the queue changes. Keeps the already prepared player if the following
+    // track is still the same, otherwise throws it away and prepares the new one.
+    public void setNext(String path) {
+        handler.removeMessages(MSG_SET_NEXT);
+        send(MSG_SET_NEXT, new Command(path, 0));
+    }
+
+    public void pause() {
+        send(MSG_PAUSE, new Command(null, 0));
+    }
+
+    public void resume() {
+        send(MSG_RESUME, new Command(null, 0));
+    }
+
+    public void seekTo(int position) {
+        handler.removeMessages(MSG_SEEK);
+        send(MSG_SEEK, new Command(null, position));
+    }
+
+    public void release() {
+        handler.removeCallbacksAndMessages(null);
+        handler.post(this::releasePlayers);
+        thread.quitSafely();
+    }
+
+    private void send(int what, Command command) {
+        handler.obtainMessage(what, command).sendToTarget();
+    }
+
+    private boolean handleMessage(Message msg) {
+        Command command = (Command) msg.obj;
+        switch (msg.what) {
+            case MSG_PLAY:
+                doPlay(command);
+                break;
+            case MSG_SET_NEXT:
+                doSetNext(command.path);
+                break;
+            case MSG_PAUSE:
+                // A pause that lands while still preparing keeps the track from starting
+                playWhenReady = false;
+                if (currentPrepared) {
+                    if (current.isPlaying()) current.pause();
+                    publishProgress(false, current.getCurrentPosition());
+                }
+                logLatency("pause", command);
+                break;
+            case MSG_RESUME:
+                playWhenReady = true;
+                if (currentPrepared) {
+                    if (!current.isPlaying()) current.start();
+                    publishProgress(true, current.getCurrentPosition());
+                }
+                logLatency("resume", command);
+                break;
+            case MSG_SEEK:
+                if (currentPrepared) {
+                    current.seekTo(command.position);
+                    // The player may still report the old position until the seek completes
+                    publishProgress(current.isPlaying(), command.position);
+                }
+                logLatency("seek", command);
+                break;
+            case MSG_SAMPLE:
+                if (currentPrepared) publishProgress(current.isPlaying(), current.getCurrentPosition());
+                break;
+        }
+        return true;
+    }
+
+    private void doPlay(Command command) {
+        releaseNext();
+        nextPending = false;
+        pendingNextPath = null;
+        clearProgress();
+        currentPrepared = false;
+        playWhenReady = command.playWhenReady;
+        // reset() also abandons a prepare still in flight for an older target
+        if (current != null) current.reset();
+        else current = players.get();
+
+        MediaPlayer player = current;
+        try {
+            player.setOnPreparedListener(mp -> {
+                if (mp != current) return;
+                currentPrepared = true;
+                attach(mp, command.path);
+                if (command.position > 0) mp.seekTo(command.position);
+                if (playWhenReady) {
+                    mp.start();
+                    // Only meaningful when this start follows a completion (the non-gapless fallback)
+                    if (completedAt > 0) recordGap();
+                    int skipped = superseded.getAndSet(0);
+                    logLatency(skipped > 0 ? "play (" + skipped + " superseded)" : "play", command);
+                    mainHandler.post(callback::onStarted);
+                }
+                publishProgress(playWhenReady, command.position);
+                if (nextPending) {
+                    nextPending = false;
+                    doSetNext(pendingNextPath);
+                }
+            });
+            watchErrors(player, command.path);
+            if (command.source != null) player.setDataSource(command.source);
+            else player.setDataSource(command.path);
+            player.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            e.printStackTrace();
+            player.reset();
+            mainHandler.post(callback::onError);
+        }
+    }
+
+    private void doSetNext(String path) {
+        if (!currentPrepared) {
+            // Chained once the current track is prepared
+            nextPending = true;
+            pendingNextPath = path;
+            return;
+        }
+        if (path != null && path.equals(nextPath)) return;
+        releaseNext();
+        if (path == null) return;
+
+        MediaPlayer player = players.get();
+        next = player;
+        nextPath = path;
+        long issuedAt = SystemClock.uptimeMillis();
+        try {
+            player.setDataSource(path);
+            player.setOnPreparedListener(mp -> {
+                if (mp != next || !currentPrepared) return;
+                nextPrepared = true;
+                current.setNextMediaPlayer(mp);
+                Log.d(TAG, "prepare next: " + (SystemClock.uptimeMillis() - issuedAt) + " ms");
+            });
+            player.setOnErrorListener((mp, what, extra) -> {
+                if (mp == next) releaseNext();
+                return true;
+            });
+            player.setOnInfoListener((mp, what, extra) -> {
+                if (what == MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT) {
+                    // Can be delivered on either side of the old player's completion
+                    if (completedAt > 0) recordGap();
+                    else nextStartedEarly = true;
+                }
+                return false;
+            });
+            player.prepareAsync();
+        } catch (IOException e) {
+            e.printStackTrace();
+            releaseNext();
+        }
+    }
+
+    // Makes player the current track's: its errors stop playback and its end moves on
+    private void attach(MediaPlayer player, String path) {
+        watchErrors(player, path);
+        player.setOnCompletionListener(mp -> {
+            if (mp != current) return;
+            completedAt = SystemClock.elapsedRealtime();
+            if (next != null && nextPrepared) {
+                MediaPlayer finished = current;
+                String nextTrack = nextPath;
+                current = next;
+                next = null;
+                nextPath = null;
+                nextPrepared = false;
+                attach(current, nextTrack);
+                publishProgress(true, 0);
+                finished.release();
+                if (nextStartedEarly) {
+                    nextStartedEarly = false;
+                    recordGap();
+                }
+                mainHandler.post(callback::onAdvanced);
+            } else {
+                clearProgress();
+                currentPrepared = false;
+                mainHandler.post(callback::onCompletion);
+            }
+        });
+    }
+
+    // An error on the current track (the next player has its own, quieter handler until it
+    // takes over) stops playback and tells the service, instead of leaving it "playing"
+    private void watchErrors(MediaPlayer player, String path) {
+        player.setOnErrorListener((mp, what, extra) -> {
+            if (mp != current) return true;
+            Log.w(TAG, "Playback error " + what + "/" + extra + " for " + path);
+            clearProgress();
+            currentPrepared = false;
+            mp.reset();
+            mainHandler.post(callback::onError);
+            return true;
+        });
+    }
+
+    // Engine thread, with current prepared
+    private void publishProgress(boolean playing, int position) {
+        progress = new Progress(playing, position, current.getDuration());
+        handler.removeMessages(MSG_SAMPLE);
+        if (playing) handler.sendEmptyMessageDelayed(MSG_SAMPLE, SAMPLE_INTERVAL_MS);
+    }
+
+    private void clearProgress() {
+        progress = null;
+        handler.removeMessages(MSG_SAMPLE);
+    }
+
+    private void recordGap() {
+        lastGapMs = SystemClock.elapsedRealtime() - completedAt;
+        completedAt = 0;
+        Log.d(TAG, "Track transition gap: " + lastGapMs + " ms");
+    }
+
+    private void logLatency(String name, Command command) {
+        Log.d(TAG, name + ": " + (SystemClock.uptimeMillis() - command.issuedAt) + " ms");
+    }
+
+    private void releaseNext() {
+        if (current != null && nextPrepared) {
+            try {
+                current.setNextMediaPlayer(null);
+            } catch (IllegalStateException ignored) {
+            }
+        }
+        if (next != null) next.release();
+        next = null;
+        nextPath = null;
+        nextPrepared = false;
+        nextStartedEarly = false;
+    }
+
+    private void releasePlayers() {
+        releaseNext();
+        clearProgress();
+        currentPrepared = false;
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        completedAt = 0;
+    }
+}
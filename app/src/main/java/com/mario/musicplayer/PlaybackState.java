@@ -0,0 +1,55 @@
+package com.mario.musicplayer;
+
+import android.os.SystemClock;
+
+// Immutable snapshot of what MusicService is doing, handed to bound clients on every change.
+// Position is the value at updatedAt (elapsedRealtime); clients extrapolate it with rate
+// instead of asking the player.
+public final class PlaybackState {
+
+    public static final int STOPPED = 0;
+    public static final int BUFFERING = 1;
+    public static final int PLAYING = 2;
+    public static final int PAUSED = 3;
+
+    public static final PlaybackState IDLE = new PlaybackState(STOPPED, -1, 0, 0);
+
+    public final int status;
+    public final long songId;
+    public final int position;
+    public final int duration;
+    public final long updatedAt;
+    public final float rate;
+    // Set while playing a download that isn't in the library yet (songId is -1 then): the
+    // link it comes from
+    public final String streamUrl;
+
+    public PlaybackState(int status, long songId, int position, int duration) {
+        this(status, songId, position, duration, null);
+    }
+
+    public PlaybackState(int status, long songId, int position, int duration, String streamUrl) {
+        this.status = status;
+        this.songId = songId;
+        this.streamUrl = streamUrl;
+        this.position = position;
+        this.duration = duration;
+        this.updatedAt = SystemClock.elapsedRealtime();
+        this.rate = status == PLAYING ? 1f : 0f;
+    }
+
+    public int positionAt(long now) {
+        if (rate == 0f) return position;
+        long extrapolated = position + (long) ((now - updatedAt) * rate);
+        return (int) (duration > 0 ? Math.min(extrapolated, duration) : extrapolated);
+    }
+
+    // Buffering counts as playing for the controls: the user asked for audio and it is coming
+    public boolean isPlaying() {
+        return status == PLAYING || status == BUFFERING;
+    }
+
+    public boolean isActive() {
+        return status != STOPPED && (songId >= 0 || streamUrl != null);
+    }
+}
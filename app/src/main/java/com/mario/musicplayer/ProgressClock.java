@@ -0,0 +1,45 @@
+package com.mario.musicplayer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+// The one timer behind every progress display. Fires on the main thread each time the track
+// position crosses a whole second, so a mm:ss readout changes on every tick and never twice.
+// MusicService only runs it while something is playing and a client is listening.
+class ProgressClock {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable onTick;
+    private PlaybackState state;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            onTick.run();
+            schedule();
+        }
+    };
+
+    ProgressClock(Runnable onTick) {
+        this.onTick = onTick;
+    }
+
+    // Restarts from the snapshot, which is taken on every play/pause/seek
+    void start(PlaybackState state) {
+        this.state = state;
+        handler.removeCallbacks(tick);
+        schedule();
+    }
+
+    void stop() {
+        state = null;
+        handler.removeCallbacks(tick);
+    }
+
+    private void schedule() {
+        if (state == null) return;
+        int position = state.positionAt(SystemClock.elapsedRealtime());
+        handler.postDelayed(tick, 1000 - position % 1000);
+    }
+}
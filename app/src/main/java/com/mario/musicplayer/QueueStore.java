@@ -0,0 +1,129 @@
+package com.mario.musicplayer;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Checkpoints the play queue and the playback position to the database on its own thread.
+// Updates only replace the pending values; they are written together once per WRITE_DELAY_MS
+// at most, or straight away on flush(), so a burst of skips or seeks costs one transaction.
+class QueueStore {
+
+    private static final String TAG = "QueueStore";
+    private static final long WRITE_DELAY_MS = 2000;
+    // From the service starting to the restored track being paused and ready
+    static final long RESTORE_BUDGET_MS = 300;
+
+    interface LoadCallback {
+        // On the main thread
+        void onLoaded(PlayQueue queue);
+    }
+
+    interface RestoreCallback {
+        // On the main thread. songId is -1 if there was nothing to restore.
+        void onRestored(PlayQueue queue, long songId, int position);
+    }
+
+    private final DatabaseHelper db;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable write = this::write;
+
+    // Guarded by this
+    private long[] pendingQueue;
+    private long pendingSongId = -1;
+    private int pendingPosition;
+    private boolean dirty;
+    private boolean scheduled;
+
+    QueueStore(DatabaseHelper db) {
+        this.db = db;
+        thread = new HandlerThread("QueueStore");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    // Reads the checkpoint and saved queue off the main thread. Nothing else is read if no
+    // track was ever played; an empty saved queue falls back to the whole library in list order.
+    void restore(RestoreCallback callback) {
+        long start = SystemClock.uptimeMillis();
+        handler.post(() -> {
+            long[] checkpoint = db.getPlaybackCheckpoint();
+            if (checkpoint == null) {
+                mainHandler.post(() -> callback.onRestored(new PlayQueue(), -1, 0));
+                return;
+            }
+            long songId = checkpoint[0];
+            int position = (int) checkpoint[1];
+            PlayQueue queue = db.getSavedQueue();
+            if (queue.isEmpty()) queue = PlayQueue.fromLibrary(db);
+            Log.d(TAG, "restore read " + queue.size() + " tracks in "
+                    + (SystemClock.uptimeMillis() - start) + " ms");
+            PlayQueue restored = queue;
+            mainHandler.post(() -> callback.onRestored(restored, songId, position));
+        });
+    }
+
+    // The whole library in list order, for when no client handed over a list
+    void loadLibrary(LoadCallback callback) {
+        handler.post(() -> {
+            PlayQueue queue = PlayQueue.fromLibrary(db);
+            mainHandler.post(() -> callback.onLoaded(queue));
+        });
+    }
+
+    synchronized void setQueue(long[] ids) {
+        pendingQueue = ids;
+        markDirty();
+    }
+
+    synchronized void setPosition(long songId, int position) {
+        if (songId < 0) return;
+        pendingSongId = songId;
+        pendingPosition = position;
+        markDirty();
+    }
+
+    // Writes whatever is pending now, e.g. on pause or when the service goes away
+    synchronized void flush() {
+        handler.removeCallbacks(write);
+        scheduled = true;
+        handler.post(write);
+    }
+
+    void release() {
+        flush();
+        thread.quitSafely();
+    }
+
+    private void markDirty() {
+        dirty = true;
+        if (scheduled) return;
+        scheduled = true;
+        handler.postDelayed(write, WRITE_DELAY_MS);
+    }
+
+    private void write() {
+        long[] queue;
+        long songId;
+        int position;
+        synchronized (this) {
+            scheduled = false;
+            // Nothing worth restoring until a track has been played
+            if (!dirty || pendingSongId < 0) return;
+            dirty = false;
+            queue = pendingQueue;
+            pendingQueue = null;
+            songId = pendingSongId;
+            position = pendingPosition;
+        }
+        try {
+            db.saveQueueState(queue, songId, position);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
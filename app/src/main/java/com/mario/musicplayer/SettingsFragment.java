@@ -7,18 +7,25 @@ import android.content.pm.PackageManager;
 import android.os.*;
 import android.os.Environment;
 import android.view.*;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AlertDialog;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 
 import com.google.android.material.button.MaterialButton;
+import com.google.android.material.slider.Slider;
+import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.google.android.material.textfield.TextInputEditText;
 
 import java.io.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class SettingsFragment extends Fragment {
 
@@ -56,6 +63,29 @@ public class SettingsFragment extends Fragment {
             }
         });
 
+        view.findViewById(R.id.btnLibraryRoots).setOnClickListener(v -> showLibraryRootsDialog());
+
+        // Library indexing backend; switching rescans with the other one
+        SwitchMaterial mediaStoreSwitch = view.findViewById(R.id.mediaStoreSwitch);
+        mediaStoreSwitch.setChecked(LibraryScanner.INDEXER_MEDIASTORE.equals(
+                prefs.getString(LibraryScanner.PREF_INDEXER, LibraryScanner.INDEXER_FILES)));
+        mediaStoreSwitch.setOnCheckedChangeListener((button, checked) -> {
+            prefs.edit().putString(LibraryScanner.PREF_INDEXER,
+                    checked ? LibraryScanner.INDEXER_MEDIASTORE : LibraryScanner.INDEXER_FILES).apply();
+            LibraryScanner.getInstance(requireContext()).start();
+        });
+
+        // How many downloads run at once
+        DownloadQueue downloads = DownloadQueue.getInstance(requireContext());
+        TextView parallelismLabel = view.findViewById(R.id.parallelismLabel);
+        Slider parallelismSlider = view.findViewById(R.id.parallelismSlider);
+        parallelismSlider.setValue(downloads.getParallelism());
+        parallelismLabel.setText("Parallel downloads: " + downloads.getParallelism());
+        parallelismSlider.addOnChangeListener((slider, value, fromUser) -> {
+            downloads.setParallelism((int) value);
+            parallelismLabel.setText("Parallel downloads: " + (int) value);
+        });
+
         // Export DB button
         btnExportDb.setOnClickListener(v -> exportDatabase());
 
@@ -68,9 +98,39 @@ public class SettingsFragment extends Fragment {
         }
     }
 
+    // Every candidate folder with a checkbox; saving rescans and re-watches the new set
+    private void showLibraryRootsDialog() {
+        Context context = requireContext();
+        List<String> candidates = LibraryRoots.getCandidates(context);
+        Set<String> enabled = LibraryRoots.getEnabledPaths(context);
+        String[] items = candidates.toArray(new String[0]);
+        boolean[] checked = new boolean[items.length];
+        for (int i = 0; i < items.length; i++) checked[i] = enabled.contains(items[i]);
+
+        new AlertDialog.Builder(context)
+                .setTitle("Library Folders")
+                .setMultiChoiceItems(items, checked, (dialog, which, isChecked) -> checked[which] = isChecked)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    HashSet<String> paths = new HashSet<>();
+                    for (int i = 0; i < items.length; i++) {
+                        if (checked[i]) paths.add(items[i]);
+                    }
+                    LibraryRoots.setEnabledPaths(context, paths);
+                    LibraryScanner.getInstance(context).start();
+                    LibraryWatcher.getInstance(context).start(LibraryRoots.get(context));
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private void exportDatabase() {
         try {
             File dbFile = requireContext().getDatabasePath("music_meta.db");
+            // Recent changes may still be in the -wal file next to it
+            if (!DatabaseHelper.getInstance(requireContext()).checkpoint()) {
+                Toast.makeText(requireContext(), "Database busy, try again", Toast.LENGTH_SHORT).show();
+                return;
+            }
             File exportDir = new File(Environment.getExternalStoragePublicDirectory(
                     Environment.DIRECTORY_DOWNLOADS), "MusicPlayerBackup");
 
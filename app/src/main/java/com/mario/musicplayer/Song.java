@@ -0,0 +1,33 @@
+package com.mario.musicplayer;
+
+public class Song {
+    public final String path;
+    public final String title;
+    public final String artist;
+    public final String album;
+    public final String albumArtist; // Null when the file doesn't say; the album then goes under artist
+    public final String genre;
+    public final int trackNumber;
+    public final int year;
+    public final int duration;
+    public final String artKey;
+    public final long lastModified;
+    public final long size;
+
+    public Song(String path, String title, String artist, String album, String albumArtist,
+                String genre, int trackNumber, int year, int duration,
+                String artKey, long lastModified, long size) {
+        this.path = path;
+        this.title = title;
+        this.artist = artist;
+        this.album = album;
+        this.albumArtist = albumArtist;
+        this.genre = genre;
+        this.trackNumber = trackNumber;
+        this.year = year;
+        this.duration = duration;
+        this.artKey = artKey;
+        this.lastModified = lastModified;
+        this.size = size;
+    }
+}
@@ -2,87 +2,195 @@ package com.mario.musicplayer;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
 import android.view.*;
 import android.widget.*;
 
-import java.io.File;
-import java.util.ArrayList;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 
-public class SongAdapter extends BaseAdapter {
-    private Context context;
-    private ArrayList<File> songs;
-    private LayoutInflater inflater;
-    private DatabaseHelper db;
+// Binds rows straight from the cursor returned by DatabaseHelper.getSongList(), so binding a
+// row is a moveToPosition() plus a few column reads and never another query. Updates arrive
+// as snapshots diffed off the main thread, so only the rows that changed are touched.
+public class SongAdapter extends RecyclerView.Adapter<SongAdapter.ViewHolder> {
 
-    public SongAdapter(Context context, ArrayList<File> songs) {
-        this.context = context;
-        this.songs = songs;
+    public interface OnSongClickListener {
+        void onSongClick(int position);
+    }
+
+    // A list cursor plus the _id, path and last_modified of every row, read on a background
+    // thread. Two snapshots can be diffed without touching the cursor the adapter is binding
+    // from, and the ids and paths are what the service's queue is built from.
+    public static class Snapshot {
+        final Cursor cursor;
+        final long[] ids;
+        final String[] paths;
+        final long[] versions;
+
+        private Snapshot(Cursor cursor, long[] ids, String[] paths, long[] versions) {
+            this.cursor = cursor;
+            this.ids = ids;
+            this.paths = paths;
+            this.versions = versions;
+        }
+
+        public static Snapshot load(DatabaseHelper db) {
+            return from(db.getSongList());
+        }
+
+        // Search results; the whole list if the query has nothing to search for. Throws
+        // OperationCanceledException once the signal is cancelled.
+        public static Snapshot search(DatabaseHelper db, String query, CancellationSignal signal) {
+            Cursor cursor = db.searchSongs(query, signal);
+            return cursor != null ? from(cursor) : load(db);
+        }
+
+        // Takes ownership of any cursor with the getSongList() columns
+        static Snapshot from(Cursor cursor) {
+            try {
+                int count = cursor.getCount();
+                long[] ids = new long[count];
+                String[] paths = new String[count];
+                long[] versions = new long[count];
+                int idColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ID);
+                int pathColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_PATH);
+                int modifiedColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_MODIFIED);
+                for (int i = 0; cursor.moveToPosition(i); i++) {
+                    ids[i] = cursor.getLong(idColumn);
+                    paths[i] = cursor.getString(pathColumn);
+                    versions[i] = cursor.getLong(modifiedColumn);
+                }
+                return new Snapshot(cursor, ids, paths, versions);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        public void close() {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(null, new long[0], new String[0], new long[0]);
+
+    private final LayoutInflater inflater;
+    private final ArtLoader artLoader;
+    private Snapshot snapshot = EMPTY;
+    private OnSongClickListener clickListener;
+
+    private int titleColumn, artistColumn, artKeyColumn;
+
+    public SongAdapter(Context context) {
         inflater = LayoutInflater.from(context);
-        db = new DatabaseHelper(context);
+        artLoader = ArtLoader.getInstance(context);
+        setHasStableIds(true);
     }
 
-    @Override
-    public int getCount() {
-        return songs.size();
+    public void setOnSongClickListener(OnSongClickListener listener) {
+        clickListener = listener;
+    }
+
+    // Safe to call off the main thread; snapshots are never modified once loaded
+    public static DiffUtil.DiffResult diff(Snapshot oldList, Snapshot newList) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldList.ids.length;
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newList.ids.length;
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return oldList.ids[oldPosition] == newList.ids[newPosition];
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return oldList.versions[oldPosition] == newList.versions[newPosition];
+            }
+        }, false);
+    }
+
+    // Main thread only. A null diff means "everything changed" (first load).
+    public void submit(Snapshot next, DiffUtil.DiffResult diff) {
+        Snapshot old = snapshot;
+        snapshot = next;
+        if (next.cursor != null) {
+            Cursor cursor = next.cursor;
+            titleColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_TITLE);
+            artistColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ARTIST);
+            artKeyColumn = cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART_KEY);
+        }
+        if (diff != null) diff.dispatchUpdatesTo(this);
+        else notifyDataSetChanged();
+        old.close();
+    }
+
+    public void close() {
+        snapshot.close();
+        snapshot = EMPTY;
     }
 
     @Override
-    public Object getItem(int position) {
-        return songs.get(position);
+    public int getItemCount() {
+        return snapshot.ids.length;
     }
 
     @Override
     public long getItemId(int position) {
-        return position;
+        return snapshot.ids[position];
     }
 
-    static class ViewHolder {
-        ImageView songImage;
-        TextView songTitle;
-        TextView songArtist;
-    }
+    class ViewHolder extends RecyclerView.ViewHolder {
+        final ImageView songImage;
+        final TextView songTitle;
+        final TextView songArtist;
 
-    @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        ViewHolder holder;
-        File song = songs.get(position);
-
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.song_item, parent, false);
-            holder = new ViewHolder();
-            holder.songImage = convertView.findViewById(R.id.songImage);
-            holder.songTitle = convertView.findViewById(R.id.songTitle);
-            holder.songArtist = convertView.findViewById(R.id.songArtist);
-            convertView.setTag(holder);
-        } else {
-            holder = (ViewHolder) convertView.getTag();
+        ViewHolder(View view) {
+            super(view);
+            songImage = view.findViewById(R.id.songImage);
+            songTitle = view.findViewById(R.id.songTitle);
+            songArtist = view.findViewById(R.id.songArtist);
+            view.setOnClickListener(v -> {
+                int position = getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && clickListener != null) {
+                    clickListener.onSongClick(position);
+                }
+            });
         }
+    }
 
-        Cursor cursor = db.getSong(song.getAbsolutePath());
-        if (cursor.moveToFirst()) {
-            String title = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_TITLE));
-            String artist = cursor.getString(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ARTIST));
-            byte[] art = cursor.getBlob(cursor.getColumnIndexOrThrow(DatabaseHelper.COL_ART));
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(inflater.inflate(R.layout.song_item, parent, false));
+    }
 
-            holder.songTitle.setText(title != null ? title : "Unknown Title");
-            holder.songArtist.setText(artist != null ? artist : "Unknown Artist");
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Cursor cursor = snapshot.cursor;
+        if (cursor == null || !cursor.moveToPosition(position)) return;
+        String title = cursor.getString(titleColumn);
+        String artist = cursor.getString(artistColumn);
 
-            if (art != null) {
-                Bitmap bitmap = BitmapFactory.decodeByteArray(art, 0, art.length);
-                holder.songImage.setImageBitmap(bitmap);
-            } else {
-                holder.songImage.setImageResource(android.R.drawable.ic_media_play);
-            }
-        } else {
-            // fallback if not found
-            holder.songTitle.setText(song.getName());
-            holder.songArtist.setText("Unknown Artist");
-            holder.songImage.setImageResource(android.R.drawable.ic_media_play);
-        }
+        holder.songTitle.setText(title != null ? title : "Unknown Title");
+        holder.songArtist.setText(artist != null ? artist : "Unknown Artist");
+        artLoader.load(cursor.getString(artKeyColumn), ArtStore.SIZE_LIST,
+                holder.songImage, android.R.drawable.ic_media_play);
+    }
 
-        cursor.close();
-        return convertView;
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        artLoader.cancel(holder.songImage);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,121 @@
+package com.mario.musicplayer;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Rows per second for the bulk insertSongs() path against one insertSong() per row, and a copy
+// of the database file after checkpoint() holding every committed row.
+@RunWith(RobolectricTestRunner.class)
+public class DatabaseIngestTest {
+
+    private static final int RUNS = 3;
+
+    private DatabaseHelper db;
+
+    @Before
+    public void setUp() {
+        db = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.resetInstance();
+    }
+
+    @Test
+    public void bulkIngestBeatsOneTransactionPerRow() {
+        // Warm up both paths, so the first size isn't timing the JIT and statement compilation
+        List<Song> warmUp = songs(1000);
+        db.insertSongs(warmUp);
+        clear(warmUp);
+        for (Song song : warmUp) db.insertSong(song);
+        clear(warmUp);
+
+        for (int count : new int[]{1000, 10000, 50000}) {
+            List<Song> songs = songs(count);
+            // The per-row path is slow enough that 50k rows would dominate the run; its rate is
+            // measured on the first 10k
+            List<Song> perRow = songs.subList(0, Math.min(count, 10000));
+
+            // Best of a few runs each, so one GC pause or disk hiccup can't decide the comparison
+            double bulk = 0, single = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                db.insertSongs(songs);
+                bulk = Math.max(bulk, rate(count, start));
+                assertEquals(count, count());
+                clear(songs);
+
+                start = System.nanoTime();
+                for (Song song : perRow) db.insertSong(song);
+                single = Math.max(single, rate(perRow.size(), start));
+                clear(perRow);
+            }
+
+            System.out.printf("%d rows: %.0f rows/s bulk, %.0f rows/s per row (%.1fx)%n",
+                    count, bulk, single, bulk / single);
+            assertTrue(count + " rows", bulk > single);
+        }
+    }
+
+    @Test
+    public void checkpointedFileHasEveryRow() throws Exception {
+        db.insertSongs(songs(500));
+        assertTrue(db.checkpoint());
+
+        File source = RuntimeEnvironment.getApplication().getDatabasePath("music_meta.db");
+        File copy = new File(source.getParentFile(), "export_copy.db");
+        Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        SQLiteDatabase exported = SQLiteDatabase.openDatabase(copy.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try (Cursor cursor = exported.rawQuery("SELECT COUNT(*) FROM " + DatabaseHelper.TABLE_SONGS, null)) {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(500, cursor.getInt(0));
+        } finally {
+            exported.close();
+        }
+    }
+
+    private static List<Song> songs(int count) {
+        ArrayList<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // About ten tracks an album and ten albums an artist, like a real library
+            songs.add(new Song("/storage/emulated/0/Music/track" + i + ".mp3", "Track " + i,
+                    "Artist " + i / 100, "Album " + i / 10, null, "Rock", i % 10 + 1, 2000,
+                    180000, null, 1_700_000_000_000L + i, 4_000_000L + i));
+        }
+        return songs;
+    }
+
+    private static double rate(int rows, long startNanos) {
+        return rows / ((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    private int count() {
+        try (Cursor cursor = db.getSongList()) {
+            return cursor.getCount();
+        }
+    }
+
+    private void clear(List<Song> songs) {
+        ArrayList<String> paths = new ArrayList<>(songs.size());
+        for (Song song : songs) paths.add(song.path);
+        db.deleteSongs(paths);
+        assertEquals(0, count());
+    }
+}
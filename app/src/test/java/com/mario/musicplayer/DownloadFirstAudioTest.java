@@ -0,0 +1,110 @@
+package com.mario.musicplayer;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+// Time to first audio for a download played while it runs, against a server that trickles the
+// file out: the player's first read of enough bytes to start decoding, compared with waiting
+// for the whole file the way playing a finished download does.
+@RunWith(RobolectricTestRunner.class)
+public class DownloadFirstAudioTest {
+
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int CHUNK = 16 * 1024;
+    private static final long CHUNK_DELAY_MS = 20; // About 800 KB/s
+    // Roughly what MediaPlayer reads before it can report prepared
+    private static final int FIRST_AUDIO_BYTES = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL url;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/song.mp3", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "audio/mpeg");
+            exchange.sendResponseHeaders(200, FILE_SIZE);
+            byte[] chunk = new byte[CHUNK];
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int sent = 0; sent < FILE_SIZE; sent += CHUNK) {
+                    out.write(chunk);
+                    out.flush();
+                    try {
+                        Thread.sleep(CHUNK_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/song.mp3");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void progressivePlaybackStartsBeforeTheDownloadFinishes() throws Exception {
+        Downloader downloader = new Downloader(folder.newFolder("music"));
+        PartialDownload partial = new PartialDownload(downloader.partFile(url));
+        long start = System.nanoTime();
+        long[] finishedAt = new long[1];
+        // What DownloadQueue does for a job: the download runs on its own thread and reports in
+        Thread download = new Thread(() -> {
+            try {
+                Downloader.Result result = downloader.download(url, "song.mp3", partial::onProgress);
+                partial.onFinished(result.file);
+                finishedAt[0] = System.nanoTime();
+            } catch (IOException e) {
+                partial.onFailed();
+            }
+        });
+        download.start();
+
+        GrowingFileDataSource source = new GrowingFileDataSource(partial);
+        byte[] buffer = new byte[CHUNK];
+        long position = 0;
+        while (position < FIRST_AUDIO_BYTES) {
+            int read = source.readAt(position, buffer, 0, buffer.length);
+            assertTrue("Ended early", read > 0);
+            position += read;
+        }
+        long firstAudioMs = (System.nanoTime() - start) / 1_000_000;
+
+        // Reading along sees the whole file, across the rename
+        while (true) {
+            int read = source.readAt(position, buffer, 0, buffer.length);
+            if (read < 0) break;
+            position += read;
+        }
+        source.close();
+        download.join();
+        assertEquals(FILE_SIZE, position);
+        assertTrue(partial.isFinished());
+        long fullDownloadMs = (finishedAt[0] - start) / 1_000_000;
+
+        System.out.println("Time to first audio: " + firstAudioMs + " ms progressive, "
+                + fullDownloadMs + " ms waiting for the download");
+        assertTrue(firstAudioMs * 4 < fullDownloadMs);
+    }
+}
@@ -0,0 +1,194 @@
+package com.mario.musicplayer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Downloader against a local HttpServer whose answers each test scripts: resuming with a
+// range, and what happens when the server or the partial file doesn't line up.
+@RunWith(RobolectricTestRunner.class)
+public class DownloaderTest {
+
+    private interface Responder {
+        void respond(HttpExchange exchange) throws IOException;
+    }
+
+    private static final byte[] BODY = body(200 * 1024, 1);
+    private static final byte[] CHANGED_BODY = body(150 * 1024, 7);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL url;
+    private Downloader downloader;
+    // One per request, in order; the last one answers any further requests
+    private final List<Responder> responders = new ArrayList<>();
+    private final List<String> ranges = new ArrayList<>();
+    private final List<String> ifRanges = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/song.mp3", exchange -> {
+            Responder responder;
+            synchronized (responders) {
+                ranges.add(exchange.getRequestHeaders().getFirst("Range"));
+                ifRanges.add(exchange.getRequestHeaders().getFirst("If-Range"));
+                int index = Math.min(ranges.size(), responders.size()) - 1;
+                responder = responders.get(index);
+            }
+            try {
+                responder.respond(exchange);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/song.mp3");
+        downloader = new Downloader(folder.newFolder("music"));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void truncatedBodyIsResumedWithARange() throws Exception {
+        responders.add(exchange -> send(exchange, 200, "\"v1\"", BODY, BODY.length / 2));
+        responders.add(exchange -> sendRange(exchange, BODY.length / 2));
+
+        Downloader.Result result = downloader.download(url, "song.mp3", null);
+
+        assertArrayEquals(BODY, Files.readAllBytes(result.file.toPath()));
+        assertEquals(Arrays.asList(null, "bytes=" + BODY.length / 2 + "-"), ranges);
+        assertEquals("\"v1\"", ifRanges.get(1));
+        assertFalse(downloader.partFile(url).exists());
+        assertFalse(downloader.validatorFile(url).exists());
+    }
+
+    @Test
+    public void changedFileIsFetchedAgainWhenIfRangeDoesNotMatch() throws Exception {
+        seedPart(BODY.length / 3, "\"v1\"");
+        // The file changed on the server, so it ignores the range and sends the new one whole
+        responders.add(exchange -> send(exchange, 200, "\"v2\"", CHANGED_BODY, CHANGED_BODY.length));
+
+        Downloader.Result result = downloader.download(url, "song.mp3", null);
+
+        assertArrayEquals(CHANGED_BODY, Files.readAllBytes(result.file.toPath()));
+        assertEquals("bytes=" + BODY.length / 3 + "-", ranges.get(0));
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void unsatisfiableRangeOnACompletePartFinishesIt() throws Exception {
+        seedPart(BODY.length, "\"v1\"");
+        responders.add(exchange -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + BODY.length);
+            exchange.sendResponseHeaders(416, -1);
+        });
+
+        Downloader.Result result = downloader.download(url, "song.mp3", null);
+
+        assertArrayEquals(BODY, Files.readAllBytes(result.file.toPath()));
+        assertEquals(1, ranges.size());
+    }
+
+    @Test
+    public void unsatisfiableRangeOnAStalePartStartsOver() throws Exception {
+        // Longer than the file the server has now
+        seedPart(BODY.length, "\"v1\"");
+        responders.add(exchange -> {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + CHANGED_BODY.length);
+            exchange.sendResponseHeaders(416, -1);
+        });
+        responders.add(exchange -> send(exchange, 200, "\"v2\"", CHANGED_BODY, CHANGED_BODY.length));
+
+        Downloader.Result result = downloader.download(url, "song.mp3", null);
+
+        assertArrayEquals(CHANGED_BODY, Files.readAllBytes(result.file.toPath()));
+        assertEquals(Arrays.asList("bytes=" + BODY.length + "-", null), ranges);
+    }
+
+    @Test
+    public void contentRangeAtTheWrongOffsetStartsOver() throws Exception {
+        seedPart(BODY.length / 2, "\"v1\"");
+        // A partial answer that doesn't start where the file ends can't be appended
+        responders.add(exchange -> sendRange(exchange, 0));
+        responders.add(exchange -> send(exchange, 200, "\"v1\"", BODY, BODY.length));
+
+        Downloader.Result result = downloader.download(url, "song.mp3", null);
+
+        assertArrayEquals(BODY, Files.readAllBytes(result.file.toPath()));
+        assertEquals(Arrays.asList("bytes=" + BODY.length / 2 + "-", null), ranges);
+    }
+
+    @Test
+    public void truncatedBodyWithoutRangeSupportFailsAndKeepsThePart() {
+        // No validator, so there is nothing to resume against and every attempt starts over
+        responders.add(exchange -> send(exchange, 200, null, BODY, BODY.length / 2));
+
+        try {
+            downloader.download(url, "song.mp3", null);
+            fail("Expected the download to fail");
+        } catch (IOException expected) {
+        }
+
+        assertEquals(Arrays.asList(null, null, null), ranges);
+        assertEquals(BODY.length / 2, downloader.partFile(url).length());
+        assertEquals(0, new File(folder.getRoot(), "music").list((dir, name) -> !name.startsWith(".")).length);
+    }
+
+    private void seedPart(int length, String tag) throws IOException {
+        Files.write(downloader.partFile(url).toPath(), Arrays.copyOf(BODY, length));
+        Files.write(downloader.validatorFile(url).toPath(), tag.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Promises the whole body but only sends the first bytes of it when sent is short
+    private static void send(HttpExchange exchange, int code, String tag, byte[] body, int sent)
+            throws IOException {
+        if (tag != null) exchange.getResponseHeaders().set("ETag", tag);
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body, 0, sent);
+        out.flush();
+        // Closing the exchange short of the promised length drops the connection
+    }
+
+    private static void sendRange(HttpExchange exchange, int from) throws IOException {
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        exchange.getResponseHeaders().set("Content-Range",
+                "bytes " + from + "-" + (BODY.length - 1) + "/" + BODY.length);
+        exchange.sendResponseHeaders(206, BODY.length - from);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(BODY, from, BODY.length - from);
+        }
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) body[i] = (byte) (i * seed + i / 251);
+        return body;
+    }
+}
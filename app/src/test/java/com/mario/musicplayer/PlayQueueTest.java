@@ -0,0 +1,92 @@
+package com.mario.musicplayer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// PlayQueue against a plain list doing the same edits, and the cost of editing a long queue
+public class PlayQueueTest {
+
+    @Test
+    public void randomEditsMatchAListModel() {
+        Random random = new Random(7);
+        PlayQueue queue = new PlayQueue(new long[]{1, 2, 3}, new String[]{"/1", "/2", "/3"});
+        List<Long> model = new ArrayList<>(List.of(1L, 2L, 3L));
+        long nextId = 4;
+        for (int step = 0; step < 20000; step++) {
+            int op = random.nextInt(4);
+            if (op == 0 || model.isEmpty()) {
+                // Half of them right after the first entry, so that gap runs out and gets respaced
+                int position = random.nextBoolean() ? Math.min(1, model.size()) : random.nextInt(model.size() + 1);
+                queue.insert(position, nextId, "/" + nextId);
+                model.add(position, nextId++);
+            } else if (op == 1) {
+                int position = random.nextInt(model.size());
+                queue.remove(position);
+                model.remove(position);
+            } else if (op == 2) {
+                int from = random.nextInt(model.size());
+                int to = random.nextInt(model.size());
+                queue.move(from, to);
+                model.add(to, model.remove(from));
+            } else {
+                queue.add(nextId, "/" + nextId);
+                model.add(nextId++);
+            }
+            if (step % 500 == 0) assertMatches(model, queue);
+        }
+        assertMatches(model, queue);
+    }
+
+    @Test
+    public void currentFollowsItsTrack() {
+        PlayQueue queue = new PlayQueue(new long[]{1, 2, 3, 4}, new String[]{"/1", "/2", "/3", "/4"});
+        queue.setCurrentId(3);
+        queue.insert(0, 9, "/9");
+        assertEquals(3, queue.getCurrentId());
+        queue.move(3, 0);
+        assertEquals(3, queue.getCurrentId());
+        assertEquals(0, queue.getCurrent());
+        queue.remove(1);
+        assertEquals(3, queue.getCurrentId());
+        assertEquals(0, queue.indexOfPath("/3"));
+    }
+
+    @Test
+    public void editsDoNotRebuildTheIndex() {
+        int size = 100000;
+        long[] ids = new long[size];
+        String[] paths = new String[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = i;
+            paths[i] = "/" + i;
+        }
+        PlayQueue queue = new PlayQueue(ids, paths);
+        Random random = new Random(3);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10000; i++) {
+            queue.move(random.nextInt(size), random.nextInt(size));
+            queue.insert(random.nextInt(queue.size()), size + i, "/" + (size + i));
+            queue.remove(random.nextInt(queue.size()));
+        }
+        double perEditUs = (System.nanoTime() - start) / 1e3 / 30000;
+        System.out.printf("%.1f us per insert/remove/move on a %d-track queue%n", perEditUs, size);
+        // A reindex of the shifted entries would be tens of thousands of map writes per edit
+        assertTrue(perEditUs < 500);
+        assertEquals(size, queue.size());
+    }
+
+    private static void assertMatches(List<Long> model, PlayQueue queue) {
+        assertEquals(model.size(), queue.size());
+        for (int i = 0; i < model.size(); i++) {
+            long id = model.get(i);
+            assertEquals(id, queue.getId(i));
+            assertEquals("/" + id, queue.getPath(i));
+            assertEquals(i, queue.indexOfId(id));
+        }
+    }
+}
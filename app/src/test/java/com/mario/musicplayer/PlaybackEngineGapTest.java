@@ -0,0 +1,345 @@
+package com.mario.musicplayer;
+
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Drives PlaybackEngine with fake players whose prepares and track ends the test controls, and
+// measures the gap between one track ending and the next one sounding, and what other threads
+// read of its progress.
+@RunWith(RobolectricTestRunner.class)
+public class PlaybackEngineGapTest {
+
+    private final List<FakePlayer> players = new ArrayList<>();
+    // Prepares for these paths wait for finishPrepare()
+    private final Set<String> slowPaths = new HashSet<>();
+    private int started, advanced, completed, errors;
+    private PlaybackEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new PlaybackEngine(new PlaybackEngine.Callback() {
+            @Override
+            public void onStarted() {
+                started++;
+            }
+
+            @Override
+            public void onAdvanced() {
+                advanced++;
+            }
+
+            @Override
+            public void onCompletion() {
+                completed++;
+            }
+
+            @Override
+            public void onError() {
+                errors++;
+            }
+        }, () -> {
+            FakePlayer player = new FakePlayer();
+            synchronized (players) {
+                players.add(player);
+            }
+            return player;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        engine.release();
+    }
+
+    @Test
+    public void chainedNextTrackStartsWithoutGap() {
+        engine.play("a.mp3");
+        engine.setNext("b.mp3");
+        FakePlayer a = await("a.mp3");
+        FakePlayer b = await("b.mp3");
+        waitFor(() -> a.next == b);
+
+        a.complete();
+        waitFor(() -> engine.getLastGapMs() >= 0);
+        idleMain();
+
+        assertEquals(0, engine.getLastGapMs());
+        assertEquals(1, started);
+        assertEquals(1, advanced);
+        assertEquals(0, completed);
+        assertTrue(b.playing);
+    }
+
+    @Test
+    public void unpreparedNextTrackFallsBackAndRecordsTheGap() {
+        slowPaths.add("b.mp3");
+        engine.play("a.mp3");
+        engine.setNext("b.mp3");
+        FakePlayer a = await("a.mp3");
+        waitFor(() -> a.playing);
+
+        a.complete();
+        waitFor(() -> {
+            idleMain();
+            return completed == 1;
+        });
+        // What MusicService does on completion: play the following track the slow way, on the
+        // player that just finished
+        engine.play("b.mp3");
+        waitFor(() -> "b.mp3".equals(a.path));
+        ShadowSystemClock.advanceBy(Duration.ofMillis(120));
+        a.finishPrepare();
+        waitFor(() -> engine.getLastGapMs() >= 0);
+
+        assertEquals(120, engine.getLastGapMs());
+        assertEquals(0, advanced);
+    }
+
+    @Test
+    public void errorAfterGaplessHandOverStopsPlayback() {
+        engine.play("a.mp3");
+        engine.setNext("b.mp3");
+        FakePlayer a = await("a.mp3");
+        FakePlayer b = await("b.mp3");
+        waitFor(() -> a.next == b);
+        a.complete();
+        waitFor(() -> {
+            idleMain();
+            return advanced == 1;
+        });
+
+        b.fail();
+        waitFor(() -> {
+            idleMain();
+            return errors == 1;
+        });
+        assertFalse(engine.isReady());
+    }
+
+    @Test
+    public void changedNextTrackIsPreparedAgain() {
+        engine.play("a.mp3");
+        engine.setNext("b.mp3");
+        FakePlayer a = await("a.mp3");
+        FakePlayer b = await("b.mp3");
+        waitFor(() -> a.next == b);
+
+        engine.setNext("c.mp3");
+        FakePlayer c = await("c.mp3");
+        waitFor(() -> a.next == c);
+        assertTrue(b.released);
+    }
+
+    @Test
+    public void progressIsReadWithoutTouchingThePlayer() {
+        engine.play("a.mp3", 10000, true);
+        FakePlayer a = await("a.mp3");
+        waitFor(engine::isPlaying);
+        assertEquals(180000, engine.getDuration());
+
+        // Moves on with the clock while playing, and stops with it on pause
+        ShadowSystemClock.advanceBy(Duration.ofMillis(400));
+        assertEquals(10400, engine.getPosition());
+        a.position = 10400;
+        engine.pause();
+        waitFor(() -> !engine.isPlaying());
+        ShadowSystemClock.advanceBy(Duration.ofMillis(400));
+        assertEquals(10400, engine.getPosition());
+
+        engine.seekTo(60000);
+        waitFor(() -> engine.getPosition() == 60000);
+        assertFalse(a.readOffThread);
+    }
+
+    // The newest player that was handed path
+    private FakePlayer await(String path) {
+        FakePlayer[] found = new FakePlayer[1];
+        waitFor(() -> {
+            synchronized (players) {
+                for (int i = players.size() - 1; i >= 0; i--) {
+                    FakePlayer player = players.get(i);
+                    if (path.equals(player.path)) {
+                        found[0] = player;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+        return found[0];
+    }
+
+    private static void idleMain() {
+        shadowOf(Looper.getMainLooper()).idle();
+    }
+
+    // The engine runs on its own thread
+    private static void waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail("Timed out");
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    // Plays nothing; events are delivered on the thread that created it, like MediaPlayer's
+    private class FakePlayer extends MediaPlayer {
+        private final Handler handler = new Handler(Looper.myLooper());
+        private OnPreparedListener onPrepared;
+        private OnCompletionListener onCompletion;
+        private OnErrorListener onError;
+        private OnInfoListener onInfo;
+        volatile String path;
+        volatile FakePlayer next;
+        volatile boolean prepared;
+        volatile boolean playing;
+        volatile boolean released;
+        volatile int position;
+        // A getter was called from a thread other than the engine's
+        volatile boolean readOffThread;
+
+        @Override
+        public void setDataSource(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public void setDataSource(MediaDataSource source) {
+            path = "stream";
+        }
+
+        @Override
+        public void prepareAsync() {
+            if (!slowPaths.contains(path)) finishPrepare();
+        }
+
+        void finishPrepare() {
+            handler.post(() -> {
+                prepared = true;
+                if (onPrepared != null) onPrepared.onPrepared(this);
+            });
+        }
+
+        // The track ran out: a chained, prepared player takes over first
+        void complete() {
+            handler.post(() -> {
+                playing = false;
+                FakePlayer following = next;
+                if (following != null && following.prepared) {
+                    following.playing = true;
+                    if (following.onInfo != null) {
+                        following.onInfo.onInfo(following, MEDIA_INFO_STARTED_AS_NEXT, 0);
+                    }
+                }
+                if (onCompletion != null) onCompletion.onCompletion(this);
+            });
+        }
+
+        void fail() {
+            handler.post(() -> {
+                playing = false;
+                if (onError != null) onError.onError(this, MEDIA_ERROR_UNKNOWN, 0);
+            });
+        }
+
+        @Override
+        public void start() {
+            playing = true;
+        }
+
+        @Override
+        public void pause() {
+            playing = false;
+        }
+
+        @Override
+        public boolean isPlaying() {
+            checkThread();
+            return playing;
+        }
+
+        @Override
+        public void seekTo(int msec) {
+            position = msec;
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            checkThread();
+            return position;
+        }
+
+        @Override
+        public int getDuration() {
+            checkThread();
+            return 180000;
+        }
+
+        // MediaPlayer's constructor calls getCurrentPosition() before handler is set
+        private void checkThread() {
+            if (handler != null && Looper.myLooper() != handler.getLooper()) readOffThread = true;
+        }
+
+        @Override
+        public void setNextMediaPlayer(MediaPlayer next) {
+            this.next = (FakePlayer) next;
+        }
+
+        @Override
+        public void reset() {
+            path = null;
+            next = null;
+            prepared = false;
+            playing = false;
+        }
+
+        @Override
+        public void release() {
+            reset();
+            released = true;
+        }
+
+        @Override
+        public void setOnPreparedListener(OnPreparedListener listener) {
+            onPrepared = listener;
+        }
+
+        @Override
+        public void setOnCompletionListener(OnCompletionListener listener) {
+            onCompletion = listener;
+        }
+
+        @Override
+        public void setOnErrorListener(OnErrorListener listener) {
+            onError = listener;
+        }
+
+        @Override
+        public void setOnInfoListener(OnInfoListener listener) {
+            onInfo = listener;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.mario.musicplayer;
+
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// QueueStore.restore() on a 20k-song library: a saved queue of every song comes back within
+// RESTORE_BUDGET_MS, and with no checkpoint nothing but the checkpoint is read.
+@RunWith(RobolectricTestRunner.class)
+public class QueueStoreTest {
+
+    private static final int SONGS = 20000;
+
+    private DatabaseHelper db;
+    private QueueStore store;
+    private PlayQueue restoredQueue;
+    private long restoredSongId;
+    private int restoredPosition;
+
+    @Before
+    public void setUp() {
+        db = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        ArrayList<Song> songs = new ArrayList<>(SONGS);
+        for (int i = 0; i < SONGS; i++) {
+            songs.add(new Song("/storage/emulated/0/Music/track" + i + ".mp3", "Track " + i,
+                    "Artist " + i / 100, "Album " + i / 10, null, null, i % 10 + 1, 2000,
+                    180000, null, 1, 1));
+        }
+        db.insertSongs(songs);
+        store = new QueueStore(db);
+    }
+
+    @After
+    public void tearDown() {
+        store.release();
+        DatabaseHelper.resetInstance();
+    }
+
+    @Test
+    public void savedQueueIsRestoredWithinBudget() {
+        long[] ids = new long[SONGS];
+        for (int i = 0; i < SONGS; i++) ids[i] = db.getSongId("/storage/emulated/0/Music/track" + i + ".mp3");
+        db.saveQueueState(ids, ids[SONGS / 2], 42000);
+
+        long nanos = System.nanoTime();
+        store.restore(this::onRestored);
+        awaitRestore();
+        long elapsedMs = (System.nanoTime() - nanos) / 1_000_000;
+
+        System.out.printf("Restored a %d-track queue in %d ms (budget %d ms)%n",
+                restoredQueue.size(), elapsedMs, QueueStore.RESTORE_BUDGET_MS);
+        assertEquals(SONGS, restoredQueue.size());
+        assertEquals(ids[SONGS / 2], restoredSongId);
+        assertEquals(42000, restoredPosition);
+        assertTrue(elapsedMs < QueueStore.RESTORE_BUDGET_MS);
+    }
+
+    @Test
+    public void nothingIsReadWithoutACheckpoint() {
+        store.restore(this::onRestored);
+        awaitRestore();
+
+        assertEquals(-1, restoredSongId);
+        // Not the library fallback
+        assertTrue(restoredQueue.isEmpty());
+    }
+
+    private void onRestored(PlayQueue queue, long songId, int position) {
+        restoredQueue = queue;
+        restoredSongId = songId;
+        restoredPosition = position;
+    }
+
+    // The store reads on its own thread and answers on the main one
+    private void awaitRestore() {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (restoredQueue == null) {
+            if (System.nanoTime() > deadline) fail("Timed out");
+            shadowOf(Looper.getMainLooper()).idle();
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.mario.musicplayer;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// searchSongs() over a 50k-song library, typed a letter at a time: the p95 has to stay under
+// 20 ms. The same queries also run against an index built without prefix="2,3", to show what
+// the prefix indexes buy. The first letter typed isn't searched (see toMatchQuery), so the
+// queries start at two.
+@RunWith(RobolectricTestRunner.class)
+public class SearchBenchmarkTest {
+
+    private static final int SONGS = 50000;
+    private static final long P95_BUDGET_MS = 20;
+
+    private DatabaseHelper db;
+    private final List<String> queries = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        db = DatabaseHelper.getInstance(RuntimeEnvironment.getApplication());
+        Random random = new Random(42);
+        String[] words = words(random, 3000);
+        ArrayList<Song> songs = new ArrayList<>(SONGS);
+        for (int i = 0; i < SONGS; i++) {
+            String title = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)];
+            songs.add(new Song("/storage/emulated/0/Music/" + i + ".mp3", title,
+                    words[random.nextInt(2000)] + " " + words[random.nextInt(2000)],
+                    words[random.nextInt(words.length)], null, null, 1, 2000, 180000, null, 1, 1));
+        }
+        db.insertSongs(songs);
+
+        // Every prefix of a few titles and artists, the way the search box sends them
+        for (int i = 0; i < 40; i++) {
+            String typed = i % 2 == 0 ? songs.get(random.nextInt(SONGS)).title
+                    : songs.get(random.nextInt(SONGS)).artist;
+            for (int end = 2; end <= typed.length(); end++) queries.add(typed.substring(0, end));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseHelper.resetInstance();
+    }
+
+    @Test
+    public void searchP95StaysWithinBudget() {
+        SQLiteDatabase raw = db.getWritableDatabase();
+        raw.execSQL("CREATE VIRTUAL TABLE plain_fts USING fts4(title, artist, album, tokenize=unicode61)");
+        raw.execSQL("INSERT INTO plain_fts (docid, title, artist, album) SELECT docid, title, artist, album FROM "
+                + DatabaseHelper.TABLE_SONGS_FTS);
+
+        // Warm-up, so the first queries don't pay for loading pages
+        time(query -> db.searchSongs(query, null));
+        time(query -> raw.rawQuery("SELECT docid FROM plain_fts WHERE plain_fts MATCH ?",
+                new String[]{DatabaseHelper.toMatchQuery(query)}));
+
+        long[] prefixed = time(query -> db.searchSongs(query, null));
+        long[] plainMatch = time(query -> raw.rawQuery("SELECT docid FROM plain_fts WHERE plain_fts MATCH ?",
+                new String[]{DatabaseHelper.toMatchQuery(query)}));
+        long[] prefixedMatch = time(query -> raw.rawQuery("SELECT docid FROM "
+                + DatabaseHelper.TABLE_SONGS_FTS + " WHERE " + DatabaseHelper.TABLE_SONGS_FTS
+                + " MATCH ?", new String[]{DatabaseHelper.toMatchQuery(query)}));
+
+        System.out.printf("%d queries on %d songs: searchSongs p50 %.2f ms, p95 %.2f ms; "
+                        + "MATCH alone p95 %.2f ms with prefix indexes, %.2f ms without%n",
+                queries.size(), SONGS, percentile(prefixed, 50), percentile(prefixed, 95),
+                percentile(prefixedMatch, 95), percentile(plainMatch, 95));
+        assertTrue(percentile(prefixed, 95) < P95_BUDGET_MS);
+    }
+
+    private interface Search {
+        Cursor run(String query);
+    }
+
+    // Nanoseconds per query, including reading every row the way the list snapshot does
+    private long[] time(Search search) {
+        long[] times = new long[queries.size()];
+        for (int i = 0; i < times.length; i++) {
+            long start = System.nanoTime();
+            try (Cursor cursor = search.run(queries.get(i))) {
+                if (cursor != null) while (cursor.moveToNext()) cursor.getLong(0);
+            }
+            times[i] = System.nanoTime() - start;
+        }
+        return times;
+    }
+
+    private static double percentile(long[] times, int percentile) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * percentile / 100.0) - 1);
+        return sorted[index] / 1e6;
+    }
+
+    // Pronounceable made-up words, so prefixes match the way real titles do
+    private static String[] words(Random random, int count) {
+        String consonants = "bcdfghjklmnpqrstvwxyz";
+        String vowels = "aeiouy";
+        String[] words = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder word = new StringBuilder();
+            // Some words start with a vowel, like real ones
+            if (random.nextInt(5) == 0) word.append(vowels.charAt(random.nextInt(vowels.length())));
+            int syllables = 1 + random.nextInt(3);
+            for (int s = 0; s < syllables; s++) {
+                word.append(consonants.charAt(random.nextInt(consonants.length())));
+                word.append(vowels.charAt(random.nextInt(vowels.length())));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+}